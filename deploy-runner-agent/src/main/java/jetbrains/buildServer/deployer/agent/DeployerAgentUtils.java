@@ -18,7 +18,12 @@ package jetbrains.buildServer.deployer.agent;
 
 import jetbrains.buildServer.BuildProblemData;
 import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.agent.impl.artifacts.ArtifactsCollection;
 import jetbrains.buildServer.deployer.common.DeployerRunnerConstants;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.*;
 
 public class DeployerAgentUtils {
   public static void logBuildProblem(BuildProgressLogger logger, String message) {
@@ -27,4 +32,89 @@ public class DeployerAgentUtils {
                     DeployerRunnerConstants.BUILD_PROBLEM_TYPE,
                     "Deployment problem: " + message));
   }
+
+  public static boolean allTerminated(@NotNull final List<Thread> threads) {
+    for (Thread thread : threads) {
+      if (thread.getState() != Thread.State.TERMINATED) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Split artifacts into at most {@code parts} disjoint shares of roughly equal size in bytes.
+   * Every share keeps the source and target paths of original collections.
+   *
+   * @param artifacts artifacts to split
+   * @param parts     maximum number of shares
+   * @return non-empty list of shares
+   */
+  @NotNull
+  public static List<List<ArtifactsCollection>> splitArtifacts(@NotNull final List<ArtifactsCollection> artifacts, final int parts) {
+    final List<FileToUpload> files = new ArrayList<FileToUpload>();
+    for (int i = 0; i < artifacts.size(); i++) {
+      for (Map.Entry<File, String> fileStringEntry : artifacts.get(i).getFilePathMap().entrySet()) {
+        files.add(new FileToUpload(i, fileStringEntry.getKey(), fileStringEntry.getValue()));
+      }
+    }
+
+    final int sharesCount = Math.min(parts, files.size());
+    if (sharesCount <= 1) {
+      return Collections.singletonList(artifacts);
+    }
+
+    // largest files first, each goes to the least loaded share
+    Collections.sort(files, new Comparator<FileToUpload>() {
+      public int compare(FileToUpload o1, FileToUpload o2) {
+        return o1.size < o2.size ? 1 : (o1.size == o2.size ? 0 : -1);
+      }
+    });
+    final long[] shareSizes = new long[sharesCount];
+    final List<List<Map<File, String>>> sharePathMaps = new ArrayList<List<Map<File, String>>>();
+    for (int i = 0; i < sharesCount; i++) {
+      final List<Map<File, String>> pathMaps = new ArrayList<Map<File, String>>();
+      for (int j = 0; j < artifacts.size(); j++) {
+        pathMaps.add(new LinkedHashMap<File, String>());
+      }
+      sharePathMaps.add(pathMaps);
+    }
+    for (FileToUpload file : files) {
+      int target = 0;
+      for (int i = 1; i < sharesCount; i++) {
+        if (shareSizes[i] < shareSizes[target]) {
+          target = i;
+        }
+      }
+      shareSizes[target] += file.size;
+      sharePathMaps.get(target).get(file.collectionIndex).put(file.source, file.destination);
+    }
+
+    final List<List<ArtifactsCollection>> result = new ArrayList<List<ArtifactsCollection>>();
+    for (List<Map<File, String>> pathMaps : sharePathMaps) {
+      final List<ArtifactsCollection> share = new ArrayList<ArtifactsCollection>();
+      for (int j = 0; j < artifacts.size(); j++) {
+        if (!pathMaps.get(j).isEmpty()) {
+          final ArtifactsCollection original = artifacts.get(j);
+          share.add(new ArtifactsCollection(original.getSourcePath(), original.getTargetPath(), pathMaps.get(j)));
+        }
+      }
+      result.add(share);
+    }
+    return result;
+  }
+
+  private static class FileToUpload {
+    final int collectionIndex;
+    final File source;
+    final String destination;
+    final long size;
+
+    private FileToUpload(int collectionIndex, @NotNull File source, String destination) {
+      this.collectionIndex = collectionIndex;
+      this.source = source;
+      this.destination = destination;
+      this.size = source.length();
+    }
+  }
 }
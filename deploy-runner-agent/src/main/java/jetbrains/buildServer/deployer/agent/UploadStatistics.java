@@ -0,0 +1,50 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.deployer.agent;
+
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts uploaded and skipped files of a deploy. Safe to share between upload threads.
+ */
+public class UploadStatistics {
+  private final AtomicInteger myUploadedFiles = new AtomicInteger();
+  private final AtomicLong myUploadedBytes = new AtomicLong();
+  private final AtomicInteger mySkippedFiles = new AtomicInteger();
+  private final AtomicLong mySkippedBytes = new AtomicLong();
+
+  public void fileUploaded(@NotNull final File file) {
+    myUploadedFiles.incrementAndGet();
+    myUploadedBytes.addAndGet(file.length());
+  }
+
+  public void fileSkipped(@NotNull final File file) {
+    mySkippedFiles.incrementAndGet();
+    mySkippedBytes.addAndGet(file.length());
+  }
+
+  @NotNull
+  public String getSummary() {
+    return "Uploaded [" + myUploadedFiles.get() + "] files (" + StringUtil.formatFileSize(myUploadedBytes.get()) + "), " +
+        "skipped [" + mySkippedFiles.get() + "] unchanged files (" + StringUtil.formatFileSize(mySkippedBytes.get()) + ")";
+  }
+}
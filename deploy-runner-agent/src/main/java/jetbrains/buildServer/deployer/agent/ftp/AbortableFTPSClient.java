@@ -0,0 +1,52 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.deployer.agent.ftp;
+
+import org.apache.commons.net.ftp.FTPSClient;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * FTPS client which data connection can be closed from another thread
+ */
+class AbortableFTPSClient extends FTPSClient implements AbortableTransferClient {
+
+  private volatile Socket myDataSocket;
+
+  AbortableFTPSClient(boolean isImplicit) {
+    super(isImplicit);
+  }
+
+  @Override
+  protected Socket _openDataConnection_(final String command, final String arg) throws IOException {
+    final Socket socket = super._openDataConnection_(command, arg);
+    myDataSocket = socket;
+    return socket;
+  }
+
+  public void closeDataConnection() {
+    final Socket socket = myDataSocket;
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // already closed
+      }
+    }
+  }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.deployer.agent.ftp;
+
+/**
+ * FTP client that keeps track of the data connection of its running transfer
+ */
+interface AbortableTransferClient {
+  /**
+   * Close data connection of a running transfer, may be called from another thread.
+   * Unblocks the thread that is stuck sending file content to unresponsive server.
+   */
+  void closeDataConnection();
+}
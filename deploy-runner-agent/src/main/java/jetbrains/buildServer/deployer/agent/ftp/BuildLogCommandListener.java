@@ -20,17 +20,36 @@ import jetbrains.buildServer.agent.BuildProgressLogger;
 import jetbrains.buildServer.messages.DefaultMessagesInfo;
 import org.apache.commons.net.ProtocolCommandEvent;
 import org.apache.commons.net.ProtocolCommandListener;
+import org.apache.commons.net.ftp.FTPReply;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Map;
+import java.util.TreeMap;
+
 /**
  * Created by Nikita.Skvortsov
  * date: 12.11.2015.
+ *
+ * Writes FTP protocol to the build log. Full trace of every command and reply is written only on demand,
+ * by default the listener counts sent commands by verb, logs failed commands with their replies
+ * and writes periodic summaries. One instance may be shared by several clients.
  */
 public class BuildLogCommandListener implements ProtocolCommandListener {
+  private static final long SUMMARY_INTERVAL_MS = 60 * 1000;
+
   private final BuildProgressLogger myLogger;
+  private final boolean myFullTrace;
+  private final Map<String, Integer> myCommandCounts = new TreeMap<String, Integer>();
+  private final ThreadLocal<String> myLastCommand = new ThreadLocal<String>();
+  private long myLastSummaryTime = System.currentTimeMillis();
 
   public BuildLogCommandListener(@NotNull  BuildProgressLogger logger) {
+    this(logger, true);
+  }
+
+  public BuildLogCommandListener(@NotNull BuildProgressLogger logger, boolean fullTrace) {
     this.myLogger = logger;
+    this.myFullTrace = fullTrace;
   }
 
   public void protocolCommandSent(ProtocolCommandEvent event) {
@@ -47,11 +66,55 @@ public class BuildLogCommandListener implements ProtocolCommandListener {
     } else {
       sb.append(cmd).append(" *******");
     }
-    logInternalMessage(sb.toString());
+    if (myFullTrace) {
+      logInternalMessage(sb.toString());
+    } else {
+      myLastCommand.set(sb.toString().trim());
+      countCommand(cmd);
+    }
   }
 
   public void protocolReplyReceived(ProtocolCommandEvent event) {
-    logInternalMessage("< " + event.getMessage());
+    if (myFullTrace) {
+      logInternalMessage("< " + event.getMessage());
+    } else if (FTPReply.isNegativeTransient(event.getReplyCode()) || FTPReply.isNegativePermanent(event.getReplyCode())) {
+      final String lastCommand = myLastCommand.get();
+      logInternalMessage((lastCommand != null ? lastCommand + "\n" : "") + "< " + event.getMessage().trim());
+    }
+  }
+
+  /**
+   * Write numbers of sent commands to the build log. Does nothing in full trace mode.
+   */
+  public void logSummary() {
+    if (myFullTrace) {
+      return;
+    }
+    final StringBuilder sb = new StringBuilder();
+    int total = 0;
+    synchronized (myCommandCounts) {
+      for (Map.Entry<String, Integer> entry : myCommandCounts.entrySet()) {
+        sb.append(sb.length() > 0 ? ", " : "").append(entry.getKey()).append(": ").append(entry.getValue());
+        total += entry.getValue();
+      }
+      myLastSummaryTime = System.currentTimeMillis();
+    }
+    if (total > 0) {
+      logInternalMessage("FTP commands sent: " + total + " (" + sb + ")");
+    }
+  }
+
+  private void countCommand(@NotNull final String cmd) {
+    final boolean summaryDue;
+    synchronized (myCommandCounts) {
+      final String verb = cmd.toUpperCase();
+      final Integer count = myCommandCounts.get(verb);
+      myCommandCounts.put(verb, count == null ? 1 : count + 1);
+      summaryDue = System.currentTimeMillis() - myLastSummaryTime >= SUMMARY_INTERVAL_MS;
+    }
+    if (summaryDue) {
+      logSummary();
+    }
   }
 
   private void logInternalMessage(@NotNull final String msg) {
@@ -20,8 +20,10 @@ import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.agent.BuildFinishedStatus;
 import jetbrains.buildServer.agent.BuildRunnerContext;
 import jetbrains.buildServer.agent.impl.artifacts.ArtifactsCollection;
+import jetbrains.buildServer.deployer.agent.DeployerAgentUtils;
 import jetbrains.buildServer.deployer.agent.SyncBuildProcessAdapter;
 import jetbrains.buildServer.deployer.agent.UploadInterruptedException;
+import jetbrains.buildServer.deployer.agent.UploadStatistics;
 import jetbrains.buildServer.deployer.common.FTPRunnerConstants;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.util.WaitFor;
@@ -36,7 +38,12 @@ import java.io.IOException;
 import java.net.SocketException;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static jetbrains.buildServer.deployer.agent.DeployerAgentUtils.logBuildProblem;
@@ -49,6 +56,9 @@ class FtpBuildProcessAdapter extends SyncBuildProcessAdapter {
   private static final int STREAM_BUFFER_SIZE = 5 * 1024 * 1024; // 5 Mb
   private static final int SOCKET_BUFFER_SIZE = 1024 * 1024; // 1 Mb
   private static final int DEFAULT_FTP_CONNECT_TIMEOUT = 30 * 1000 * 60; // 30 Min
+  private static final int DEFAULT_MAX_RETRIES = 3;
+  private static final long INTERRUPT_POLL_INTERVAL_MS = 100;
+  private static final long INTERRUPT_TIMEOUT_MS = 2000;
 
   private final String myTarget;
   private final String myUsername;
@@ -58,6 +68,11 @@ class FtpBuildProcessAdapter extends SyncBuildProcessAdapter {
   private final String mySecureMode;
   private final boolean myIsActive;
   private FtpConnectTimeout myFtpConnectTimeout;
+  private final int myParallelConnections;
+  private final FtpUploadOptions myOptions;
+  private final boolean myReuseTlsSession;
+  private final boolean myZeroCopy;
+  private final BuildLogCommandListener myProtocolLog;
 
   public FtpBuildProcessAdapter(@NotNull final BuildRunnerContext context,
                                 @NotNull final String target,
@@ -73,6 +88,61 @@ class FtpBuildProcessAdapter extends SyncBuildProcessAdapter {
     myTransferMode = context.getRunnerParameters().get(FTPRunnerConstants.PARAM_TRANSFER_MODE);
     mySecureMode = context.getRunnerParameters().get(FTPRunnerConstants.PARAM_SSL_MODE);
     myFtpConnectTimeout = getConnectTimeout(context);
+    myParallelConnections = getIntParameter(context, FTPRunnerConstants.PARAM_FTP_PARALLEL_CONNECTIONS, 1, 1);
+    final Map<String, String> sharedConfigParameters = context.getBuild().getSharedConfigParameters();
+    final boolean reuseTlsSession = StringUtil.isTrue(sharedConfigParameters.get(FTPRunnerConstants.PARAM_FTP_TLS_SESSION_REUSE));
+    if (reuseTlsSession && !SessionReuseFTPSClient.isSupported()) {
+      myLogger.warning("TLS session reuse for FTPS data connections is not available on this JVM, " +
+                       "run the agent with '--add-opens java.base/sun.security.ssl=ALL-UNNAMED --add-opens java.base/sun.security.util=ALL-UNNAMED'");
+    }
+    myReuseTlsSession = reuseTlsSession && SessionReuseFTPSClient.isSupported();
+    final String atomicUpload = sharedConfigParameters.get(FTPRunnerConstants.PARAM_FTP_ATOMIC_UPLOAD);
+    final boolean deferRenames = FTPRunnerConstants.ATOMIC_UPLOAD_DEFERRED.equalsIgnoreCase(atomicUpload);
+    myZeroCopy = StringUtil.isTrue(sharedConfigParameters.get(FTPRunnerConstants.PARAM_FTP_ZERO_COPY));
+    myProtocolLog = new BuildLogCommandListener(myLogger,
+                                                FTPRunnerConstants.PROTOCOL_LOG_FULL.equalsIgnoreCase(sharedConfigParameters.get(FTPRunnerConstants.PARAM_FTP_PROTOCOL_LOG)));
+    myOptions = new FtpUploadOptions(StringUtil.isTrue(sharedConfigParameters.get(FTPRunnerConstants.PARAM_FTP_INCREMENTAL)),
+                                     getIntParameter(context, FTPRunnerConstants.PARAM_FTP_MAX_RETRIES, DEFAULT_MAX_RETRIES, 0),
+                                     getCompression(sharedConfigParameters.get(FTPRunnerConstants.PARAM_FTP_COMPRESSION)),
+                                     StringUtil.isTrue(atomicUpload) || deferRenames,
+                                     deferRenames);
+  }
+
+  @NotNull
+  private static String getCompression(final String value) {
+    if (StringUtil.isEmptyOrSpaces(value)) {
+      return FTPRunnerConstants.COMPRESSION_NONE;
+    }
+    final String compression = value.trim().toLowerCase();
+    if (FTPRunnerConstants.COMPRESSION_ALL.equals(compression) || FTPRunnerConstants.COMPRESSION_TEXT.equals(compression)
+        || FTPRunnerConstants.COMPRESSION_NONE.equals(compression)) {
+      return compression;
+    }
+    LOG.warn("Incorrect value '" + value + "' of '" + FTPRunnerConstants.PARAM_FTP_COMPRESSION + "' parameter, expecting one of " +
+                     FTPRunnerConstants.COMPRESSION_NONE + ", " + FTPRunnerConstants.COMPRESSION_ALL + ", " + FTPRunnerConstants.COMPRESSION_TEXT + ". " +
+                     "Compression is disabled.");
+    return FTPRunnerConstants.COMPRESSION_NONE;
+  }
+
+  private int getIntParameter(@NotNull final BuildRunnerContext context,
+                              @NotNull final String parameterName,
+                              final int defaultValue,
+                              final int minValue) {
+    final String value = context.getBuild().getSharedConfigParameters().get(parameterName);
+    if (StringUtil.isEmptyOrSpaces(value)) {
+      return defaultValue;
+    }
+    try {
+      final int result = Integer.parseInt(value.trim());
+      if (result >= minValue) {
+        return result;
+      }
+    } catch (NumberFormatException e) {
+      //
+    }
+    LOG.warn("Incorrect value '" + value + "' of '" + parameterName + "' parameter, expecting integer not less than " + minValue + ". " +
+                     "Default value " + defaultValue + " was used.");
+    return defaultValue;
   }
 
   private FtpConnectTimeout getConnectTimeout(BuildRunnerContext context) {
@@ -109,7 +179,7 @@ class FtpBuildProcessAdapter extends SyncBuildProcessAdapter {
   @Override
   public BuildFinishedStatus runProcess() {
 
-    FTPClient clientToDisconnect = null;
+    final List<FTPClient> clientsToDisconnect = Collections.synchronizedList(new ArrayList<FTPClient>());
     try {
       final URL targetUrl = new URL(myTarget);
       final String host = targetUrl.getHost();
@@ -123,80 +193,95 @@ class FtpBuildProcessAdapter extends SyncBuildProcessAdapter {
         path = "";
       }
 
-      final FTPClient client = createClient();
-      clientToDisconnect = client;
-
-      if (port > 0) {
-        client.connect(host, port);
-      } else {
-        client.connect(host);
-      }
-
-      client.addProtocolCommandListener(new BuildLogCommandListener(myLogger));
-
-      if (myIsActive) {
-        client.enterLocalActiveMode();
-      } else {
-        client.enterLocalPassiveMode();
-      }
+      final List<List<ArtifactsCollection>> shares = DeployerAgentUtils.splitArtifacts(myArtifacts, myParallelConnections);
+      final AtomicReference<BuildFinishedStatus> processResult = new AtomicReference<BuildFinishedStatus>(BuildFinishedStatus.FINISHED_SUCCESS);
+      final RemoteDirectoryCache directoryCache = new RemoteDirectoryCache();
+      final UploadStatistics statistics = new UploadStatistics();
+      final List<InterruptibleUploadProcess> uploadProcesses = new ArrayList<InterruptibleUploadProcess>();
+      final List<Thread> uploadThreads = new ArrayList<Thread>();
+      for (List<ArtifactsCollection> share : shares) {
+        final FTPClient client = createClient();
+        clientsToDisconnect.add(client);
+        connectAndLogin(client, host, port);
+
+        final InterruptibleUploadProcess uploadProcess = new InterruptibleUploadProcess(client, myLogger, share, getFileType(myTransferMode), path, directoryCache, myOptions, statistics, processResult) {
+          public boolean checkIsInterrupted() {
+            return FtpBuildProcessAdapter.this.isInterrupted();
+          }
 
-      final boolean loginSuccessful = client.login(myUsername, myPassword);
-      if (!loginSuccessful) {
-        logBuildProblem(myLogger, "Failed to login. Reply was: " + client.getReplyString());
-        return BuildFinishedStatus.FINISHED_FAILED;
+          @NotNull
+          FTPClient connect() throws IOException {
+            final FTPClient newClient = createClient();
+            clientsToDisconnect.add(newClient);
+            connectAndLogin(newClient, host, port);
+            return newClient;
+          }
+        };
+        uploadProcesses.add(uploadProcess);
+        final Thread uploadThread = new Thread(uploadProcess, "FTP upload " + (uploadThreads.size() + 1) + "/" + shares.size());
+        // a transfer stuck in socket write must not keep the agent from finishing the build
+        uploadThread.setDaemon(true);
+        uploadThreads.add(uploadThread);
       }
 
-      boolean isAutoType = false;
-      if (FTPRunnerConstants.TRANSFER_MODE_BINARY.equals(myTransferMode)) {
-        client.setFileType(FTP.BINARY_FILE_TYPE);
-      } else if (FTPRunnerConstants.TRANSFER_MODE_ASCII.equals(myTransferMode)) {
-        client.setFileType(FTP.ASCII_FILE_TYPE);
-      } else {
-        isAutoType = true;
+      myLogger.message("Starting upload via " + (isNone(mySecureMode) ? "FTP" :
+          (isImplicit(mySecureMode) ? "FTPS" : "FTPES")) + " to " + myTarget +
+          (uploadThreads.size() > 1 ? " using " + uploadThreads.size() + " connections" : ""));
+      for (Thread uploadThread : uploadThreads) {
+        uploadThread.start();
       }
 
-      client.setControlKeepAliveTimeout(60); // seconds
-      AtomicReference<BuildFinishedStatus> processResult = new AtomicReference<BuildFinishedStatus>(BuildFinishedStatus.FINISHED_SUCCESS);
-      final Runnable interruptibleBody = new InterruptibleUploadProcess(client, myLogger, myArtifacts, isAutoType, path, processResult) {
-        public boolean checkIsInterrupted() {
-          return FtpBuildProcessAdapter.this.isInterrupted();
+      new WaitFor(Long.MAX_VALUE, INTERRUPT_POLL_INTERVAL_MS) {
+        @Override
+        protected boolean condition() {
+          return DeployerAgentUtils.allTerminated(uploadThreads) || isInterrupted();
         }
       };
-      final Thread uploadThread = new Thread(interruptibleBody);
-
-      myLogger.message("Starting upload via " + (isNone(mySecureMode) ? "FTP" :
-          (isImplicit(mySecureMode) ? "FTPS" : "FTPES")) + " to " + myTarget);
-      uploadThread.start();
 
-      new WaitFor(Long.MAX_VALUE, 1000) {
-        @Override
-        protected boolean condition() {
-          if (uploadThread.getState() == Thread.State.TERMINATED) {
-            return true;
+      if (isInterrupted()) {
+        for (InterruptibleUploadProcess uploadProcess : uploadProcesses) {
+          uploadProcess.abort();
+        }
+        final long deadline = System.currentTimeMillis() + INTERRUPT_TIMEOUT_MS;
+        for (Thread uploadThread : uploadThreads) {
+          try {
+            uploadThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+          } catch (InterruptedException e) {
+            LOG.warnAndDebugDetails("Interrupted while waiting for FTP upload thread to join.", e);
           }
+        }
+        if (!DeployerAgentUtils.allTerminated(uploadThreads)) {
+          LOG.warn("Ftp upload threads did not stop in " + INTERRUPT_TIMEOUT_MS + "ms after interruption, leaving them behind");
+        }
+        myLogger.warning("Ftp upload interrupted.");
+        return BuildFinishedStatus.FINISHED_FAILED;
+      }
+
+      for (Thread uploadThread : uploadThreads) {
+        if (uploadThread.getState() != Thread.State.TERMINATED) {
+          LOG.warn("Ftp upload thread did not reach termination state after wait operation, trying to join");
           try {
-            if (isInterrupted()) {
-              client.abort();
-              uploadThread.join();
-              return true;
-            }
-          } catch (Exception e) {
-            throw new RuntimeException(e);
+            uploadThread.join();
+          } catch (InterruptedException e) {
+            LOG.warnAndDebugDetails("Interrupted while waiting for FTP upload thread to join.", e);
           }
-          return false;
+          LOG.warn("thread joined.");
         }
-      };
+      }
 
-      if (uploadThread.getState() != Thread.State.TERMINATED) {
-        LOG.warn("Ftp upload thread did not reach termination state after wait operation, trying to join");
-        try {
-          uploadThread.join();
-        } catch (InterruptedException e) {
-          LOG.warnAndDebugDetails("Interrupted while waiting for FTP upload thread to join.", e);
+      logUploadedCounts(uploadProcesses);
+
+      if (myOptions.isDeferRenames() && processResult.get() == BuildFinishedStatus.FINISHED_SUCCESS) {
+        for (InterruptibleUploadProcess uploadProcess : uploadProcesses) {
+          if (!uploadProcess.commitRenames()) {
+            break;
+          }
         }
-        LOG.warn("thread joined.");
       }
 
+      if (myOptions.isIncremental()) {
+        myLogger.message(statistics.getSummary());
+      }
       return processResult.get();
     } catch (UploadInterruptedException e) {
       myLogger.warning("Ftp upload interrupted.");
@@ -213,26 +298,89 @@ class FtpBuildProcessAdapter extends SyncBuildProcessAdapter {
       LOG.warnAndDebugDetails("Error executing FTP command", e);
       return BuildFinishedStatus.FINISHED_FAILED;
     } finally {
-      try {
-        if (clientToDisconnect != null && clientToDisconnect.isConnected()) {
-          clientToDisconnect.disconnect();
+      for (FTPClient clientToDisconnect : new ArrayList<FTPClient>(clientsToDisconnect)) {
+        try {
+          if (clientToDisconnect.isConnected()) {
+            clientToDisconnect.disconnect();
+          }
+        } catch (Exception e) {
+          LOG.error(e.getMessage(), e);
+        }
+      }
+      myProtocolLog.logSummary();
+    }
+  }
+
+  /**
+   * Files of a pattern may be spread over several connections, log their total once per pattern
+   */
+  private void logUploadedCounts(@NotNull final List<InterruptibleUploadProcess> uploadProcesses) {
+    final Set<String> loggedPatterns = new HashSet<String>();
+    for (ArtifactsCollection artifactsCollection : myArtifacts) {
+      final String sourcePath = artifactsCollection.getSourcePath();
+      if (loggedPatterns.add(sourcePath)) {
+        int count = 0;
+        for (InterruptibleUploadProcess uploadProcess : uploadProcesses) {
+          count += uploadProcess.getUploadedCount(sourcePath);
         }
-      } catch (Exception e) {
-        LOG.error(e.getMessage(), e);
+        myLogger.message("Uploaded [" + count + "] files for [" + sourcePath + "] pattern");
       }
     }
   }
 
+  private void connectAndLogin(@NotNull final FTPClient client,
+                               @NotNull final String host,
+                               final int port) throws IOException {
+    if (port > 0) {
+      client.connect(host, port);
+    } else {
+      client.connect(host);
+    }
+
+    client.addProtocolCommandListener(myProtocolLog);
+
+    if (myIsActive) {
+      client.enterLocalActiveMode();
+    } else {
+      client.enterLocalPassiveMode();
+    }
+
+    final boolean loginSuccessful = client.login(myUsername, myPassword);
+    if (!loginSuccessful) {
+      throw new IOException("Failed to login. Reply was: " + client.getReplyString());
+    }
+
+    if (client instanceof SessionReuseFTPSClient) {
+      // TLS session is only resumed on protected data connections
+      ((FTPSClient) client).execPBSZ(0);
+      ((FTPSClient) client).execPROT("P");
+    }
+
+    client.setControlKeepAliveTimeout(60); // seconds
+  }
+
+  /**
+   * @return FTP file type for configured transfer mode, or -1 to detect it by file extension
+   */
+  private static int getFileType(final String transferMode) {
+    if (FTPRunnerConstants.TRANSFER_MODE_BINARY.equals(transferMode)) {
+      return FTP.BINARY_FILE_TYPE;
+    } else if (FTPRunnerConstants.TRANSFER_MODE_ASCII.equals(transferMode)) {
+      return FTP.ASCII_FILE_TYPE;
+    }
+    return -1;
+  }
+
   @NotNull
   private FTPClient createClient() throws SocketException {
     final FTPClient client;
     if (isNone(mySecureMode)) {
-      client = new FTPClient();
+      client = myZeroCopy && !myIsActive ? new ZeroCopyFTPClient() : new AbortableFTPClient();
     } else {
-      if (isImplicit(mySecureMode)) {
-        client = new FTPSClient(true);
+      if (myReuseTlsSession) {
+        client = new SessionReuseFTPSClient(isImplicit(mySecureMode));
       } else {
-        client = new FTPSClient(false);
+        client = new AbortableFTPSClient(isImplicit(mySecureMode));
       }
       ((FTPSClient) client).setTrustManager(TrustManagerUtils.getAcceptAllTrustManager());
     }
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.deployer.agent.ftp;
+
+import jetbrains.buildServer.deployer.common.FTPRunnerConstants;
+import org.jetbrains.annotations.NotNull;
+
+class FtpUploadOptions {
+  private final boolean myIncremental;
+  private final int myMaxRetries;
+  private final String myCompression;
+  private final boolean myAtomic;
+  private final boolean myDeferRenames;
+
+  FtpUploadOptions(boolean incremental, int maxRetries, @NotNull String compression, boolean atomic, boolean deferRenames) {
+    myIncremental = incremental;
+    myMaxRetries = maxRetries;
+    myCompression = compression;
+    myAtomic = atomic;
+    myDeferRenames = deferRenames;
+  }
+
+  /**
+   * @return true if files with matching remote size and modification time should not be uploaded again
+   */
+  boolean isIncremental() {
+    return myIncremental;
+  }
+
+  /**
+   * @return how many times a step failed with I/O error is repeated over a new connection
+   */
+  int getMaxRetries() {
+    return myMaxRetries;
+  }
+
+  /**
+   * @return one of {@link FTPRunnerConstants#COMPRESSION_NONE}, {@link FTPRunnerConstants#COMPRESSION_ALL}
+   * or {@link FTPRunnerConstants#COMPRESSION_TEXT}
+   */
+  @NotNull
+  String getCompression() {
+    return myCompression;
+  }
+
+  /**
+   * @return true if files should be uploaded under temporary name and then renamed
+   */
+  boolean isAtomic() {
+    return myAtomic;
+  }
+
+  /**
+   * @return true if renames of atomic upload should run in one batch after all files are uploaded
+   */
+  boolean isDeferRenames() {
+    return myDeferRenames;
+  }
+}
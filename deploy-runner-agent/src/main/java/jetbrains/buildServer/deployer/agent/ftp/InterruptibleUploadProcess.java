@@ -20,21 +20,39 @@ import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.agent.BuildFinishedStatus;
 import jetbrains.buildServer.agent.BuildProgressLogger;
 import jetbrains.buildServer.agent.impl.artifacts.ArtifactsCollection;
+import jetbrains.buildServer.deployer.agent.UploadStatistics;
+import jetbrains.buildServer.deployer.common.FTPRunnerConstants;
 import jetbrains.buildServer.util.StringUtil;
+import org.apache.commons.net.ProtocolCommandEvent;
+import org.apache.commons.net.ProtocolCommandListener;
 import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.net.ftp.parser.MLSxEntryParser;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.IOException;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.StringTokenizer;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static jetbrains.buildServer.deployer.agent.DeployerAgentUtils.logBuildProblem;
@@ -48,13 +66,29 @@ abstract class InterruptibleUploadProcess implements Runnable {
 
   private static final Logger LOG = Logger.getInstance(InterruptibleUploadProcess.class.getName());
   private static final int BY_FILE_LOGGING_THRESHOLD = 20;
+  private static final long INITIAL_RETRY_DELAY_MS = 1000;
+  private static final String TEMP_NAME_SUFFIX = ".teamcity-upload";
+  private static final long MAX_RETRY_DELAY_MS = 60 * 1000;
 
-  private final FTPClient myClient;
+  private volatile FTPClient myClient;
   private BuildProgressLogger myLogger;
   private List<ArtifactsCollection> myArtifacts;
-  private boolean myIsAutoType;
+  private final int myFileType;
+  private int myCurrentFileType = -1;
+  private int myCurrentTransferMode = FTP.STREAM_TRANSFER_MODE;
+  private boolean myDeflateUnsupported = false;
+  private String myWorkingDir;
+  private final List<String> myPendingRenames = new ArrayList<String>();
+  // source pattern -> number of files uploaded by this process
+  private final Map<String, Integer> myUploadedCounts = new ConcurrentHashMap<String, Integer>();
   private String myPath;
   @NotNull
+  private final RemoteDirectoryCache myDirectoryCache;
+  @NotNull
+  private final FtpUploadOptions myOptions;
+  @NotNull
+  private final UploadStatistics myStatistics;
+  @NotNull
   private final AtomicReference<BuildFinishedStatus> myFinishStatus;
 
   private final static Set<String> ourKnownAsciiExts = new HashSet<String>();
@@ -73,106 +107,509 @@ abstract class InterruptibleUploadProcess implements Runnable {
   public InterruptibleUploadProcess(@NotNull final FTPClient client,
                                     @NotNull final BuildProgressLogger logger,
                                     @NotNull final List<ArtifactsCollection> artifacts,
-                                    final boolean isAutoType,
+                                    final int fileType,
                                     @NotNull final String path,
+                                    @NotNull final RemoteDirectoryCache directoryCache,
+                                    @NotNull final FtpUploadOptions options,
+                                    @NotNull final UploadStatistics statistics,
                                     @NotNull AtomicReference<BuildFinishedStatus> isFinishedSuccessfully) {
     this.myClient = client;
     this.myLogger = logger;
     this.myArtifacts = artifacts;
-    this.myIsAutoType = isAutoType;
+    this.myFileType = fileType;
     this.myPath = path;
+    this.myDirectoryCache = directoryCache;
+    this.myOptions = options;
+    this.myStatistics = statistics;
     myFinishStatus = isFinishedSuccessfully;
   }
 
   public void run() {
     try {
-      if (!StringUtil.isEmpty(myPath)) {
-        createPath(myPath);
-        checkResult(myClient.changeWorkingDirectory(myPath));
-      }
-
-      final String remoteRoot = myClient.printWorkingDirectory();
+      final String remoteRoot = withRetries("Preparing upload", null, new RetryableAction<String>() {
+        public String run(int attempt) throws IOException, FailureDetectedException {
+          final String loginDir = myClient.printWorkingDirectory();
+          checkResult(loginDir != null);
+          myDirectoryCache.markExisting(loginDir);
+          if (!StringUtil.isEmpty(myPath)) {
+            createPath(RemoteDirectoryCache.resolve(loginDir, myPath));
+            checkResult(myClient.changeWorkingDirectory(myPath));
+          }
+          final String result = myClient.printWorkingDirectory();
+          checkResult(result != null);
+          myDirectoryCache.markExisting(result);
+          myWorkingDir = result;
+          return result;
+        }
+      });
 
       for (ArtifactsCollection artifactsCollection : myArtifacts) {
+        final Map<String, List<File>> uploadPlan = buildUploadPlan(remoteRoot, artifactsCollection);
+
+        // create the whole directory tree in a single pass
+        for (final String destinationDir : uploadPlan.keySet()) {
+          withRetries("Creating directory [" + destinationDir + "]", null, new RetryableAction<Object>() {
+            public Object run(int attempt) throws IOException, FailureDetectedException {
+              createPath(destinationDir);
+              return null;
+            }
+          });
+        }
+
         int count = 0;
-        for (Map.Entry<File, String> fileStringEntry : artifactsCollection.getFilePathMap().entrySet()) {
-          final File source = fileStringEntry.getKey();
-          final String destinationDir = fileStringEntry.getValue();
+        for (Map.Entry<String, List<File>> planEntry : uploadPlan.entrySet()) {
+          final String destinationDir = planEntry.getKey();
+          final Map<String, FTPFile> remoteFiles = withRetries("Changing directory to [" + destinationDir + "]", null, new RetryableAction<Map<String, FTPFile>>() {
+            public Map<String, FTPFile> run(int attempt) throws IOException, FailureDetectedException {
+              changeWorkingDirectory(destinationDir);
+              return myOptions.isIncremental() ? listRemoteFiles() : null;
+            }
+          });
 
-          if (StringUtil.isNotEmpty(destinationDir)) {
-            createPath(destinationDir);
-            checkResult(myClient.changeWorkingDirectory(destinationDir));
-          }
-          LOG.debug("Transferring [" + source.getAbsolutePath() + "] to [" + destinationDir + "] under [" + remoteRoot + "]");
-          checkIsInterrupted();
-          InputStream inputStream = null;
-          try {
-            if (myIsAutoType) {
-              checkResult(myClient.setFileType(detectType(source.getName())));
+          for (final File source : planEntry.getValue()) {
+            if (checkIsInterrupted() || myFinishStatus.get() == BuildFinishedStatus.FINISHED_FAILED) {
+              // interrupted, or another upload sharing the same status has already failed
+              return;
             }
-            inputStream = new FileInputStream(source);
-            checkResult(myClient.storeFile(source.getName(), inputStream));
-          } finally {
-            if (inputStream != null) {
-              inputStream.close();
+            LOG.debug("Transferring [" + source.getAbsolutePath() + "] to [" + destinationDir + "]");
+            final boolean uploaded = withRetries("Transfer of [" + source.getPath() + "]", destinationDir, new RetryableAction<Boolean>() {
+              // remote file is only resumed once a failed attempt has started to overwrite it,
+              // before that it may be a copy left by an earlier deploy
+              private final StoreCommandListener myStoreCommandListener = new StoreCommandListener();
+
+              public Boolean run(int attempt) throws IOException, FailureDetectedException {
+                if (myOptions.isIncremental() && isUpToDate(source, remoteFiles)) {
+                  return false;
+                }
+                final String remoteName = myOptions.isAtomic() ? source.getName() + TEMP_NAME_SUFFIX : source.getName();
+                final long offset = myStoreCommandListener.isSent() ? getResumeOffset(source, remoteName) : 0;
+                storeFile(source, remoteName, offset, myStoreCommandListener);
+                if (myOptions.isIncremental()) {
+                  preserveModificationTime(source, remoteName);
+                }
+                if (myOptions.isAtomic()) {
+                  final String remotePath = RemoteDirectoryCache.child(destinationDir, source.getName());
+                  if (myOptions.isDeferRenames()) {
+                    myPendingRenames.add(remotePath);
+                  } else {
+                    rename(remotePath);
+                  }
+                }
+                return true;
+              }
+            });
+            if (!uploaded) {
+              LOG.debug("skipped unchanged [" + source.getAbsolutePath() + "]");
+              myStatistics.fileSkipped(source);
+              continue;
+            }
+            myStatistics.fileUploaded(source);
+            checkIsInterrupted();
+            LOG.debug("done transferring [" + source.getAbsolutePath() + "]");
+            count++;
+            myUploadedCounts.put(artifactsCollection.getSourcePath(), getUploadedCount(artifactsCollection.getSourcePath()) + 1);
+            if (count < BY_FILE_LOGGING_THRESHOLD) {
+              myLogger.message("Uploaded [" + source.getPath() + "] (" + StringUtil.formatFileSize(source) + ")");
+            } else if (count == BY_FILE_LOGGING_THRESHOLD) {
+              myLogger.message("< and continued >");
             }
-          }
-          checkResult(myClient.changeWorkingDirectory(remoteRoot));
-          checkIsInterrupted();
-          LOG.debug("done transferring [" + source.getAbsolutePath() + "]");
-          count++;
-          if (count < BY_FILE_LOGGING_THRESHOLD) {
-            myLogger.message("Uploaded [" + source.getPath() + "] (" + StringUtil.formatFileSize(source) + ")");
-          } else if (count == BY_FILE_LOGGING_THRESHOLD) {
-            myLogger.message("< and continued >");
           }
         }
-        myLogger.message("Uploaded [" + count + "] files for [" + artifactsCollection.getSourcePath() + "] pattern");
       }
-      myFinishStatus.set(BuildFinishedStatus.FINISHED_SUCCESS);
     } catch (FailureDetectedException t) {
-      logBuildProblem(myLogger, t.getMessage());
-      LOG.debug(t.getMessage(), t);
-      myFinishStatus.set(BuildFinishedStatus.FINISHED_FAILED);
+      reportFailure(t);
     } catch (IOException t) {
-      logBuildProblem(myLogger, t.getMessage());
-      LOG.debug(t.getMessage(), t);
-      myFinishStatus.set(BuildFinishedStatus.FINISHED_FAILED);
+      reportFailure(t);
     }
   }
 
-  private void createPath(@NotNull final String path) throws IOException, FailureDetectedException {
-    final String root = myClient.printWorkingDirectory();
-    final String normalisedPath = path.trim().replaceAll("\\\\", "/");
-    final StringTokenizer pathTokenizer = new StringTokenizer(normalisedPath, "/");
-    if (path.startsWith("/")) {
-      checkResult(myClient.changeWorkingDirectory("/")); // support absolute paths
-    }
-    boolean prevDirExisted = true;
-    while (pathTokenizer.hasMoreTokens()) {
-      checkIsInterrupted();
-      final String nextDir = pathTokenizer.nextToken();
-      if (prevDirExisted && dirExists(nextDir)) {
-        checkResult(myClient.changeWorkingDirectory(nextDir));
-      } else {
-        String mkdirFailureMsg = null;
+  /**
+   * Several processes may upload files of the same pattern, the build process sums their counts
+   *
+   * @return number of files of the source pattern uploaded by this process
+   */
+  int getUploadedCount(@NotNull final String sourcePath) {
+    final Integer count = myUploadedCounts.get(sourcePath);
+    return count != null ? count : 0;
+  }
+
+  /**
+   * Run action, and if it fails with I/O error, repeat it on a new connection after
+   * exponentially growing pause. Negative server replies are not retried.
+   *
+   * @param description what the action does, for logging
+   * @param workingDir  absolute path of working directory to restore on a new connection, null to stay in login directory
+   * @param action      action to run
+   * @return result of the action
+   */
+  private <T> T withRetries(@NotNull final String description,
+                            @Nullable final String workingDir,
+                            @NotNull final RetryableAction<T> action) throws IOException, FailureDetectedException {
+    int attempt = 0;
+    while (true) {
+      try {
+        if (attempt > 0) {
+          reconnect(workingDir);
+        }
+        return action.run(attempt);
+      } catch (FileNotFoundException e) {
+        throw e;
+      } catch (IOException e) {
+        if (attempt >= myOptions.getMaxRetries() || checkIsInterrupted()) {
+          throw e;
+        }
+        attempt++;
+        final long delay = Math.min(INITIAL_RETRY_DELAY_MS << (attempt - 1), MAX_RETRY_DELAY_MS);
+        LOG.debug(description + " failed", e);
+        myLogger.warning(description + " failed: " + e.getMessage() + ". Reconnecting in " + delay / 1000 + "s" +
+            " (retry " + attempt + " of " + myOptions.getMaxRetries() + ")");
+        if (!pause(delay)) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return false if upload was interrupted during the pause
+   */
+  private boolean pause(final long millis) {
+    final long end = System.currentTimeMillis() + millis;
+    while (System.currentTimeMillis() < end) {
+      if (checkIsInterrupted()) {
+        return false;
+      }
+      try {
+        Thread.sleep(Math.min(100, end - System.currentTimeMillis()));
+      } catch (InterruptedException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void changeWorkingDirectory(@NotNull final String path) throws IOException, FailureDetectedException {
+    if (!path.equals(myWorkingDir)) {
+      checkResult(myClient.changeWorkingDirectory(path));
+      myWorkingDir = path;
+    }
+  }
 
-        if (!myClient.makeDirectory(nextDir)) {
-          mkdirFailureMsg = myClient.getReplyString();
+  /**
+   * Group files of a collection by absolute remote directory. Sorted keys put
+   * every directory before its subdirectories.
+   */
+  @NotNull
+  private static Map<String, List<File>> buildUploadPlan(@NotNull final String remoteRoot,
+                                                         @NotNull final ArtifactsCollection artifactsCollection) {
+    final Map<String, List<File>> result = new TreeMap<String, List<File>>();
+    for (Map.Entry<File, String> fileStringEntry : artifactsCollection.getFilePathMap().entrySet()) {
+      final String destinationDir = fileStringEntry.getValue();
+      final String remoteDir = StringUtil.isNotEmpty(destinationDir) ? RemoteDirectoryCache.resolve(remoteRoot, destinationDir) : remoteRoot;
+      List<File> files = result.get(remoteDir);
+      if (files == null) {
+        files = new ArrayList<File>();
+        result.put(remoteDir, files);
+      }
+      files.add(fileStringEntry.getKey());
+    }
+    return result;
+  }
+
+  /**
+   * @param offset          size of the remote file left by a failed attempt, 0 to upload the whole file
+   * @param commandListener notified when the transfer command is sent to the server
+   */
+  private void storeFile(@NotNull final File source,
+                         @NotNull final String remoteName,
+                         final long offset,
+                         @NotNull final StoreCommandListener commandListener) throws IOException, FailureDetectedException {
+    final int fileType = getFileType(source);
+    if (fileType != myCurrentFileType) {
+      checkResult(myClient.setFileType(fileType));
+      myCurrentFileType = fileType;
+    }
+    final int transferMode = shouldCompress(source) ? FTP.DEFLATE_TRANSFER_MODE : FTP.STREAM_TRANSFER_MODE;
+    if (transferMode != myCurrentTransferMode) {
+      setTransferMode(transferMode);
+    }
+    if (offset >= source.length() && offset > 0) {
+      // previous attempt of this upload sent the whole file, but the reply was lost
+      return;
+    }
+    final FTPClient client = myClient;
+    client.addProtocolCommandListener(commandListener);
+    FileInputStream inputStream = null;
+    try {
+      inputStream = new FileInputStream(source);
+      boolean append = false;
+      if (offset > 0) {
+        myLogger.message("Resuming [" + source.getPath() + "] from byte " + offset);
+        inputStream.getChannel().position(offset);
+        if (myClient.hasFeature("REST", "STREAM")) {
+          myClient.setRestartOffset(offset);
         } else {
-          prevDirExisted = false;
+          append = true;
         }
+      }
+      if (myClient instanceof ZeroCopyFTPClient && fileType == FTP.BINARY_FILE_TYPE && myCurrentTransferMode == FTP.STREAM_TRANSFER_MODE) {
+        // content is sent as is, kernel can copy it from file to socket directly
+        checkResult(((ZeroCopyFTPClient) myClient).storeFile(remoteName, inputStream.getChannel(), append));
+      } else if (append) {
+        checkResult(myClient.appendFile(remoteName, new CancellableInputStream(inputStream)));
+      } else {
+        checkResult(myClient.storeFile(remoteName, new CancellableInputStream(inputStream)));
+      }
+    } finally {
+      client.removeProtocolCommandListener(commandListener);
+      if (inputStream != null) {
+        inputStream.close();
+      }
+    }
+  }
 
-        if (!myClient.changeWorkingDirectory(nextDir)) {
-          String cwdFailureMsg = myClient.getReplyString();
-          String message = "Failed to change current dir to [" + nextDir + "]: " + cwdFailureMsg +
-              (mkdirFailureMsg != null ? "\n Also failed to create this dir: " + mkdirFailureMsg   : "");
-          throw new FailureDetectedException(message);
+  private boolean shouldCompress(@NotNull final File source) {
+    if (myDeflateUnsupported) {
+      return false;
+    }
+    final String compression = myOptions.getCompression();
+    return FTPRunnerConstants.COMPRESSION_ALL.equals(compression)
+        || FTPRunnerConstants.COMPRESSION_TEXT.equals(compression) && ourKnownAsciiExts.contains(getExtension(source.getName()));
+  }
+
+  /**
+   * Switch between stream and deflate (MODE Z) transfer modes. MODE Z is only used
+   * when the server lists it in FEAT reply, otherwise uploads fall back to stream mode.
+   */
+  private void setTransferMode(final int transferMode) throws IOException, FailureDetectedException {
+    if (transferMode == FTP.DEFLATE_TRANSFER_MODE && !myClient.hasFeature("MODE", "Z")) {
+      myDeflateUnsupported = true;
+      myLogger.warning("Server does not support compressed transfers (MODE Z), uploading uncompressed.");
+      return;
+    }
+    checkResult(myClient.setFileTransferMode(transferMode));
+    myCurrentTransferMode = transferMode;
+  }
+
+  /**
+   * @return size of partially uploaded file in current working directory, or 0 if transfer can not be resumed
+   */
+  private long getResumeOffset(@NotNull final File source, @NotNull final String remoteName) throws IOException, FailureDetectedException {
+    // ascii transfers change line separators, remote size does not match local offset
+    if (getFileType(source) != FTP.BINARY_FILE_TYPE) {
+      return 0;
+    }
+    checkResult(myClient.setFileType(FTP.BINARY_FILE_TYPE));
+    myCurrentFileType = FTP.BINARY_FILE_TYPE;
+    if (myClient.sendCommand("SIZE", remoteName) != FTPReply.FILE_STATUS) {
+      return 0;
+    }
+    try {
+      final long remoteSize = Long.parseLong(getReplyValue());
+      return remoteSize <= source.length() ? remoteSize : 0;
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Rename uploaded file from its temporary name to the final one
+   *
+   * @param remotePath absolute final path of the file
+   */
+  private void rename(@NotNull final String remotePath) throws IOException, FailureDetectedException {
+    final String tempPath = remotePath + TEMP_NAME_SUFFIX;
+    if (!myClient.rename(tempPath, remotePath)) {
+      // some servers do not replace existing files on rename
+      final String renameFailureMsg = myClient.getReplyString();
+      if (!myClient.deleteFile(remotePath) || !myClient.rename(tempPath, remotePath)) {
+        throw new FailureDetectedException("Failed to rename [" + tempPath + "] to [" + remotePath + "]: " + renameFailureMsg);
+      }
+    }
+  }
+
+  /**
+   * Rename all files uploaded by this process to their final names. Called by the build process
+   * after all uploads of the deploy have finished.
+   *
+   * @return true if all files were renamed
+   */
+  boolean commitRenames() {
+    try {
+      for (final String remotePath : myPendingRenames) {
+        withRetries("Renaming [" + remotePath + "]", null, new RetryableAction<Object>() {
+          public Object run(int attempt) throws IOException, FailureDetectedException {
+            rename(remotePath);
+            return null;
+          }
+        });
+      }
+      if (!myPendingRenames.isEmpty()) {
+        myLogger.message("Renamed [" + myPendingRenames.size() + "] uploaded files to their final names");
+      }
+      return true;
+    } catch (FailureDetectedException e) {
+      reportFailure(e);
+    } catch (IOException e) {
+      reportFailure(e);
+    }
+    return false;
+  }
+
+  /**
+   * Replace current client with a new connected one and restore working directory
+   *
+   * @param workingDir absolute path of working directory to restore, null to stay in login directory
+   */
+  private void reconnect(@Nullable final String workingDir) throws IOException, FailureDetectedException {
+    final FTPClient oldClient = myClient;
+    try {
+      if (oldClient.isConnected()) {
+        oldClient.disconnect();
+      }
+    } catch (IOException e) {
+      LOG.debug("Failed to disconnect broken FTP connection", e);
+    }
+    myClient = connect();
+    myCurrentFileType = -1;
+    myCurrentTransferMode = FTP.STREAM_TRANSFER_MODE;
+    myWorkingDir = null;
+    if (workingDir != null) {
+      changeWorkingDirectory(workingDir);
+    }
+  }
+
+  /**
+   * List files of current working directory with MLSD.
+   *
+   * @return files by name, or null if the server does not support MLSD
+   */
+  @Nullable
+  private Map<String, FTPFile> listRemoteFiles() throws IOException {
+    if (!myClient.hasFeature("MLST")) {
+      return null;
+    }
+    final Map<String, FTPFile> result = new HashMap<String, FTPFile>();
+    for (FTPFile file : myClient.mlistDir()) {
+      if (file != null && file.isFile()) {
+        result.put(file.getName(), file);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Compare local file with its remote copy in current working directory. Ascii transfers change
+   * line separators, so only modification time is compared for text files.
+   *
+   * @param source      local file
+   * @param remoteFiles MLSD listing of current working directory, null to query SIZE and MDTM of the file
+   * @return true if remote file has the same size and modification time
+   */
+  private boolean isUpToDate(@NotNull final File source, @Nullable final Map<String, FTPFile> remoteFiles) throws IOException {
+    final boolean compareSize = getFileType(source) == FTP.BINARY_FILE_TYPE;
+    final long remoteSize;
+    final Calendar remoteTimestamp;
+    if (remoteFiles != null) {
+      final FTPFile remoteFile = remoteFiles.get(source.getName());
+      if (remoteFile == null) {
+        return false;
+      }
+      remoteSize = remoteFile.getSize();
+      remoteTimestamp = remoteFile.getTimestamp();
+    } else {
+      if (compareSize) {
+        if (myClient.sendCommand("SIZE", source.getName()) != FTPReply.FILE_STATUS) {
+          return false;
+        }
+        try {
+          remoteSize = Long.parseLong(getReplyValue());
+        } catch (NumberFormatException e) {
+          return false;
         }
+      } else {
+        remoteSize = -1;
+      }
+      if (myClient.sendCommand("MDTM", source.getName()) != FTPReply.FILE_STATUS) {
+        return false;
       }
+      remoteTimestamp = MLSxEntryParser.parseGMTdateTime(getReplyValue());
     }
+    return (!compareSize || remoteSize == source.length())
+        && remoteTimestamp != null
+        && remoteTimestamp.getTimeInMillis() / 1000 == source.lastModified() / 1000;
+  }
+
+  /**
+   * Set modification time of uploaded file to the one of the local file, so that next
+   * incremental upload can compare them
+   */
+  private void preserveModificationTime(@NotNull final File source, @NotNull final String remoteName) throws IOException {
+    final SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    if (!myClient.setModificationTime(remoteName, format.format(new Date(source.lastModified())))) {
+      LOG.debug("Failed to set modification time of [" + remoteName + "]: " + myClient.getReplyString());
+    }
+  }
+
+  @NotNull
+  private String getReplyValue() {
+    final String reply = myClient.getReplyString();
+    return reply.length() > 4 ? reply.substring(4).trim() : "";
+  }
+
+  /**
+   * Abort transfer currently running on the client of this process. Called from
+   * another thread after the build was interrupted.
+   * <p>
+   * Only the data connection is closed here, the control connection is read by the upload thread
+   * alone. The failed transfer ends the upload thread and its connection is closed with the others,
+   * a retry would run on a new connection anyway, so no ABOR is sent.
+   */
+  public void abort() {
+    final FTPClient client = myClient;
+    if (client instanceof AbortableTransferClient) {
+      ((AbortableTransferClient) client).closeDataConnection();
+    }
+  }
+
+  private void reportFailure(@NotNull final Exception e) {
+    if (checkIsInterrupted()) {
+      // failure caused by aborted transfer, interruption is reported by the build process
+      myFinishStatus.set(BuildFinishedStatus.FINISHED_FAILED);
+    } else if (myFinishStatus.compareAndSet(BuildFinishedStatus.FINISHED_SUCCESS, BuildFinishedStatus.FINISHED_FAILED)) {
+      // only the first failure is reported, the rest are likely to be its consequences
+      logBuildProblem(myLogger, e.getMessage());
+    }
+    LOG.debug(e.getMessage(), e);
+  }
 
-    checkResult(myClient.changeWorkingDirectory(root));
+  /**
+   * Make sure that directory exists on remote side, create it and its parents if needed.
+   * Does not change working directory.
+   *
+   * @param path absolute normalised path to create
+   */
+  private void createPath(@NotNull final String path) throws IOException, FailureDetectedException {
+    if ("/".equals(path) || myDirectoryCache.isKnown(path)) {
+      return;
+    }
+    if (checkIsInterrupted()) {
+      throw new InterruptedIOException("Upload interrupted");
+    }
+    final String parent = RemoteDirectoryCache.parent(path);
+    createPath(parent);
+    final String name = path.substring(path.lastIndexOf('/') + 1);
+    if (!dirExists(parent, name)) {
+      if (!myClient.makeDirectory(path)) {
+        final String mkdirFailureMsg = myClient.getReplyString();
+        // the directory may have been created concurrently by another upload
+        if (!listSubDirs(parent).contains(name)) {
+          throw new FailureDetectedException("Failed to create dir [" + path + "]: " + mkdirFailureMsg);
+        }
+      }
+      myDirectoryCache.markExisting(path);
+    }
   }
 
   private void checkResult(boolean flag) throws FailureDetectedException {
@@ -181,24 +618,49 @@ abstract class InterruptibleUploadProcess implements Runnable {
     }
   }
 
-  private boolean dirExists(@NotNull final String nextDir) throws IOException, FailureDetectedException {
-    // these directories always exist
-    if ("..".equals(nextDir) || ".".equals(nextDir)) {
+  private boolean dirExists(@NotNull final String parent, @NotNull final String name) throws IOException, FailureDetectedException {
+    final String path = RemoteDirectoryCache.child(parent, name);
+    if (myDirectoryCache.isKnown(path)) {
       return true;
     }
-    final String[] strings = myClient.listNames();
+    if (!myDirectoryCache.isListed(parent)) {
+      myDirectoryCache.markListed(parent, listSubDirs(parent));
+    }
+    return myDirectoryCache.isKnown(path);
+  }
+
+  /**
+   * List subdirectories of a remote directory. Uses MLSD where the server supports it,
+   * otherwise falls back to NLST and treats every entry as a possible directory.
+   */
+  @NotNull
+  private Set<String> listSubDirs(@NotNull final String path) throws IOException, FailureDetectedException {
+    final Set<String> result = new HashSet<String>();
+    if (myClient.hasFeature("MLST")) {
+      for (FTPFile file : myClient.mlistDir(path)) {
+        if (file != null && file.isDirectory()) {
+          result.add(file.getName());
+        }
+      }
+      return result;
+    }
+
+    final String[] strings = myClient.listNames(path);
     if (strings == null) {
       throw new FailureDetectedException("Failed to upload artifacts via FTP. Reply was: " + myClient.getReplyString());
     }
     for (String string : strings) {
-      if (string.equals(nextDir)) {
-        return true;
-      }
+      // some servers prefix names with the listed path
+      result.add(string.substring(string.lastIndexOf('/') + 1));
     }
-    return false;
+    return result;
   }
 
 
+  private int getFileType(@NotNull final File source) {
+    return myFileType >= 0 ? myFileType : detectType(source.getName());
+  }
+
   private int detectType(String name) {
     if (ourKnownAsciiExts.contains(getExtension(name))) {
       return FTP.ASCII_FILE_TYPE;
@@ -209,6 +671,74 @@ abstract class InterruptibleUploadProcess implements Runnable {
 
   abstract boolean checkIsInterrupted();
 
+  /**
+   * Open and login a new connection to the same server
+   *
+   * @return connected client
+   */
+  @NotNull
+  abstract FTPClient connect() throws IOException;
+
+  /**
+   * Stops the copy loop of a transfer as soon as the upload is interrupted,
+   * instead of waiting for the whole file to be sent
+   */
+  private class CancellableInputStream extends FilterInputStream {
+    CancellableInputStream(@NotNull final InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      checkCancelled();
+      return super.read();
+    }
+
+    @Override
+    public int read(@NotNull final byte[] b, final int off, final int len) throws IOException {
+      checkCancelled();
+      return super.read(b, off, len);
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+      if (checkIsInterrupted()) {
+        throw new InterruptedIOException("Upload interrupted");
+      }
+    }
+  }
+
+  /**
+   * Remembers whether STOR or APPE command was sent, i.e. whether the remote file
+   * may have been overwritten by this upload
+   */
+  private static class StoreCommandListener implements ProtocolCommandListener {
+    private volatile boolean mySent = false;
+
+    public void protocolCommandSent(ProtocolCommandEvent event) {
+      final String command = event.getCommand();
+      if ("STOR".equalsIgnoreCase(command) || "APPE".equalsIgnoreCase(command)) {
+        mySent = true;
+      }
+    }
+
+    public void protocolReplyReceived(ProtocolCommandEvent event) {
+    }
+
+    boolean isSent() {
+      return mySent;
+    }
+  }
+
+  /**
+   * Part of upload that can be repeated on a new connection
+   */
+  private interface RetryableAction<T> {
+    /**
+     * @param attempt 0 for the first run, number of retry otherwise
+     */
+    T run(int attempt) throws IOException, FailureDetectedException;
+  }
+
   private class FailureDetectedException extends Exception {
     FailureDetectedException(@NotNull final String message) {
       super(message);
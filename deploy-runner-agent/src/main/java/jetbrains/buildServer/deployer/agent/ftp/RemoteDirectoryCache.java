@@ -0,0 +1,103 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.deployer.agent.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+/**
+ * Remote directories known to exist during a single deploy.
+ * Shared by all upload processes of the deploy, so that each remote directory
+ * is listed or created at most once.
+ */
+class RemoteDirectoryCache {
+  private final Set<String> myKnownDirs = Collections.synchronizedSet(new HashSet<String>());
+  private final Set<String> myListedDirs = Collections.synchronizedSet(new HashSet<String>());
+
+  boolean isKnown(@NotNull final String path) {
+    return myKnownDirs.contains(path);
+  }
+
+  boolean isListed(@NotNull final String path) {
+    return myListedDirs.contains(path);
+  }
+
+  /**
+   * Record that remote directory exists, along with all its parents
+   *
+   * @param path absolute path of existing directory
+   */
+  void markExisting(@NotNull final String path) {
+    String current = path;
+    while (myKnownDirs.add(current) && !"/".equals(current)) {
+      current = parent(current);
+    }
+  }
+
+  /**
+   * Record content of a remote directory
+   *
+   * @param path    absolute path of listed directory
+   * @param subDirs names of all its subdirectories
+   */
+  void markListed(@NotNull final String path, @NotNull final Collection<String> subDirs) {
+    markExisting(path);
+    for (String subDir : subDirs) {
+      myKnownDirs.add(child(path, subDir));
+    }
+    myListedDirs.add(path);
+  }
+
+  /**
+   * Resolve path against remote base directory
+   *
+   * @param base absolute path of base directory
+   * @param path relative or absolute path, '/' or '\\' separated
+   * @return absolute normalised path
+   */
+  @NotNull
+  static String resolve(@NotNull final String base, @NotNull final String path) {
+    final String normalisedPath = path.trim().replaceAll("\\\\", "/");
+    final StringTokenizer pathTokenizer = new StringTokenizer(normalisedPath, "/");
+    String result = normalisedPath.startsWith("/") ? "/" : base; // support absolute paths
+    while (pathTokenizer.hasMoreTokens()) {
+      final String nextDir = pathTokenizer.nextToken();
+      if ("..".equals(nextDir)) {
+        result = parent(result);
+      } else if (!".".equals(nextDir)) {
+        result = child(result, nextDir);
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  static String child(@NotNull final String parent, @NotNull final String name) {
+    return parent.endsWith("/") ? parent + name : parent + "/" + name;
+  }
+
+  @NotNull
+  static String parent(@NotNull final String path) {
+    final int index = path.lastIndexOf('/');
+    return index > 0 ? path.substring(0, index) : "/";
+  }
+}
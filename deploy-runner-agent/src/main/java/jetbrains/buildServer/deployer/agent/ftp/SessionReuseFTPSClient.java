@@ -0,0 +1,92 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.deployer.agent.ftp;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.util.Locale;
+
+/**
+ * FTPS client that resumes TLS session of the control connection on every data connection.
+ * <p>
+ * JSSE caches client sessions by peer host and port, and every data connection goes to a new port,
+ * so each of them would otherwise perform a full handshake. Servers configured to require session reuse
+ * (e.g. vsftpd with require_ssl_reuse) reject such data connections altogether.
+ * <p>
+ * JSSE provides no public API to offer a session for another port, so the session is put into
+ * the cache of JSSE session context via reflection. Java 16 and later deny that access unless
+ * sun.security.ssl and sun.security.util packages are opened, see {@link #isSupported()}.
+ * If it fails, the client falls back to full handshakes.
+ */
+class SessionReuseFTPSClient extends AbortableFTPSClient {
+  private static final Logger LOG = Logger.getInstance(SessionReuseFTPSClient.class.getName());
+
+  private boolean myReuseFailed = false;
+
+  SessionReuseFTPSClient(boolean isImplicit) {
+    super(isImplicit);
+  }
+
+  /**
+   * @return true if session cache of JSSE can be accessed by this client
+   */
+  static boolean isSupported() {
+    try {
+      Class.forName("sun.security.ssl.SSLSessionContextImpl").getDeclaredField("sessionHostPortCache").setAccessible(true);
+      Class.forName("sun.security.util.MemoryCache").getDeclaredMethod("put", Object.class, Object.class).setAccessible(true);
+      return true;
+    } catch (Exception e) {
+      LOG.debug("JSSE session cache is not accessible", e);
+      return false;
+    }
+  }
+
+  @Override
+  protected void _prepareDataSocket_(final Socket socket) throws IOException {
+    if (myReuseFailed || !(socket instanceof SSLSocket) || !(_socket_ instanceof SSLSocket)) {
+      return;
+    }
+    final SSLSession session = ((SSLSocket) _socket_).getSession();
+    final SSLSessionContext context = session.getSessionContext();
+    if (!session.isValid() || context == null) {
+      return;
+    }
+    try {
+      final Field cacheField = context.getClass().getDeclaredField("sessionHostPortCache");
+      cacheField.setAccessible(true);
+      final Object cache = cacheField.get(context);
+      final Method putMethod = cache.getClass().getDeclaredMethod("put", Object.class, Object.class);
+      putMethod.setAccessible(true);
+      // data sockets are layered over plain ones with peer IP address as host, no name lookup needed
+      putMethod.invoke(cache, getCacheKey(socket.getInetAddress().getHostAddress(), socket.getPort()), session);
+    } catch (Exception e) {
+      myReuseFailed = true;
+      LOG.warnAndDebugDetails("Failed to reuse TLS session for FTPS data connections, full handshake will be used", e);
+    }
+  }
+
+  private static String getCacheKey(final String host, final int port) {
+    return (host + ":" + port).toLowerCase(Locale.ENGLISH);
+  }
+}
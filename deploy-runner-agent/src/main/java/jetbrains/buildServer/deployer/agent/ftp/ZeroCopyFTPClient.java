@@ -0,0 +1,129 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.deployer.agent.ftp;
+
+import org.apache.commons.net.ftp.FTPCmd;
+import org.jetbrains.annotations.NotNull;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Plain FTP client that can send file content with {@link FileChannel#transferTo}, letting the kernel
+ * copy data from file to data socket without passing it through user space buffers.
+ * <p>
+ * Only passive mode data connections are created from socket channels. In active mode
+ * {@link #storeFile(String, FileChannel, boolean)} falls back to a regular stream copy.
+ */
+class ZeroCopyFTPClient extends AbortableFTPClient {
+
+  private static final int FALLBACK_BUFFER_SIZE = 64 * 1024;
+  private static final SocketFactory CHANNEL_SOCKET_FACTORY = new ChannelSocketFactory();
+
+  /**
+   * Store content of the file channel from its current position to the end
+   *
+   * @param remote name of remote file
+   * @param source file to read from
+   * @param append true to send APPE instead of STOR
+   * @return true if the transfer completed successfully
+   */
+  boolean storeFile(@NotNull final String remote,
+                    @NotNull final FileChannel source,
+                    final boolean append) throws IOException {
+    // only the data connection needs a channel, control connection and other transfers use default sockets
+    final Socket socket;
+    setSocketFactory(CHANNEL_SOCKET_FACTORY);
+    try {
+      socket = _openDataConnection_(append ? FTPCmd.APPE : FTPCmd.STOR, remote);
+    } finally {
+      setSocketFactory(null);
+    }
+    if (socket == null) {
+      return false;
+    }
+    try {
+      final SocketChannel channel = socket.getChannel();
+      final long size = source.size();
+      long position = source.position();
+      if (channel != null) {
+        while (position < size) {
+          position += source.transferTo(position, size - position, channel);
+        }
+      } else {
+        final OutputStream out = socket.getOutputStream();
+        final ByteBuffer buffer = ByteBuffer.allocate(FALLBACK_BUFFER_SIZE);
+        while (source.read(buffer) > 0) {
+          out.write(buffer.array(), 0, buffer.position());
+          buffer.clear();
+        }
+      }
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+    socket.close();
+    return completePendingCommand();
+  }
+
+  /**
+   * Creates unconnected sockets backed by {@link SocketChannel}
+   */
+  private static class ChannelSocketFactory extends SocketFactory {
+    @Override
+    public Socket createSocket() throws IOException {
+      return SocketChannel.open().socket();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+      final Socket socket = createSocket();
+      socket.connect(new InetSocketAddress(host, port));
+      return socket;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+      final Socket socket = createSocket();
+      socket.bind(new InetSocketAddress(localHost, localPort));
+      socket.connect(new InetSocketAddress(host, port));
+      return socket;
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+      final Socket socket = createSocket();
+      socket.connect(new InetSocketAddress(host, port));
+      return socket;
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+      final Socket socket = createSocket();
+      socket.bind(new InetSocketAddress(localAddress, localPort));
+      socket.connect(new InetSocketAddress(address, port));
+      return socket;
+    }
+  }
+}
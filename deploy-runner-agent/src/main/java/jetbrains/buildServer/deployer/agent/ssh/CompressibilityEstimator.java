@@ -0,0 +1,93 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.deployer.agent.ssh;
+
+import jetbrains.buildServer.agent.impl.artifacts.ArtifactsCollection;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Estimates how well artifacts compress by deflating the beginning of a sample of files
+ */
+class CompressibilityEstimator {
+  private static final int MAX_SAMPLED_FILES = 64;
+  private static final int SAMPLE_SIZE = 64 * 1024;
+
+  /**
+   * @return estimated ratio of compressed size to original size of all files, 1.0 if there is nothing to sample
+   */
+  static double estimateRatio(@NotNull final List<ArtifactsCollection> artifacts) {
+    final List<File> files = new ArrayList<File>();
+    for (ArtifactsCollection artifactsCollection : artifacts) {
+      files.addAll(artifactsCollection.getFilePathMap().keySet());
+    }
+    // rounded up, so that at most MAX_SAMPLED_FILES files are read
+    final int step = Math.max(1, (files.size() + MAX_SAMPLED_FILES - 1) / MAX_SAMPLED_FILES);
+    final byte[] input = new byte[SAMPLE_SIZE];
+    final byte[] output = new byte[SAMPLE_SIZE];
+    final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    double originalSize = 0;
+    double compressedSize = 0;
+    try {
+      for (int i = 0; i < files.size(); i += step) {
+        final File file = files.get(i);
+        final int read = readSample(file, input);
+        if (read <= 0) {
+          continue;
+        }
+        deflater.reset();
+        deflater.setInput(input, 0, read);
+        deflater.finish();
+        int deflated = 0;
+        while (!deflater.finished()) {
+          deflated += deflater.deflate(output);
+        }
+        // sample is taken as representative for the whole file
+        originalSize += file.length();
+        compressedSize += (double) file.length() * deflated / read;
+      }
+    } finally {
+      deflater.end();
+    }
+    return originalSize > 0 ? compressedSize / originalSize : 1.0;
+  }
+
+  private static int readSample(@NotNull final File file, @NotNull final byte[] buffer) {
+    InputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      int total = 0;
+      int read;
+      while (total < buffer.length && (read = in.read(buffer, total, buffer.length - total)) > 0) {
+        total += read;
+      }
+      return total;
+    } catch (IOException e) {
+      return 0;
+    } finally {
+      FileUtil.close(in);
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.deployer.agent.ssh;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import jetbrains.buildServer.agent.impl.artifacts.ArtifactsCollection;
+import jetbrains.buildServer.deployer.agent.UploadStatistics;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Incremental upload over SSH: files whose remote copy has the same size and modification time are skipped.
+ * Remote attributes are read over SFTP with one directory listing per destination directory,
+ * modification time of uploaded files is set to the one of the local file, either over SFTP
+ * or by the transfer itself.
+ */
+public class IncrementalSync {
+  private final String myRemoteBase;
+  private final UploadStatistics myStatistics;
+  // remote directory -> attributes of files in it
+  private final Map<String, Map<String, SftpATTRS>> myListings = new HashMap<String, Map<String, SftpATTRS>>();
+
+  /**
+   * @param remoteBase directory destinations are relative to, "." for current directory of SFTP channel
+   * @param statistics counters of uploaded and skipped files
+   */
+  public IncrementalSync(@NotNull final String remoteBase, @NotNull final UploadStatistics statistics) {
+    myRemoteBase = remoteBase;
+    myStatistics = statistics;
+  }
+
+  /**
+   * @return artifacts without unchanged files, those are counted as skipped
+   */
+  @NotNull
+  public List<ArtifactsCollection> filterChanged(@NotNull final ChannelSftp channel,
+                                                 @NotNull final List<ArtifactsCollection> artifacts) throws SftpException {
+    final List<ArtifactsCollection> result = new ArrayList<ArtifactsCollection>();
+    for (ArtifactsCollection artifactsCollection : artifacts) {
+      final Map<File, String> changedFiles = new LinkedHashMap<File, String>();
+      for (Map.Entry<File, String> fileStringEntry : artifactsCollection.getFilePathMap().entrySet()) {
+        if (isUpToDate(channel, fileStringEntry.getKey(), fileStringEntry.getValue())) {
+          fileSkipped(fileStringEntry.getKey());
+        } else {
+          changedFiles.put(fileStringEntry.getKey(), fileStringEntry.getValue());
+        }
+      }
+      if (!changedFiles.isEmpty()) {
+        result.add(new ArtifactsCollection(artifactsCollection.getSourcePath(), artifactsCollection.getTargetPath(), changedFiles));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Not thread safe, directory listings are cached
+   *
+   * @return true if remote copy of the file has the same size and modification time
+   */
+  public boolean isUpToDate(@NotNull final ChannelSftp channel,
+                            @NotNull final File source,
+                            @NotNull final String destination) throws SftpException {
+    final String directory = getDirectory(destination);
+    Map<String, SftpATTRS> listing = myListings.get(directory);
+    if (listing == null) {
+      listing = list(channel, directory);
+      myListings.put(directory, listing);
+    }
+    final SftpATTRS attrs = listing.get(source.getName());
+    return attrs != null
+        && attrs.getSize() == source.length()
+        && attrs.getMTime() == (int) (source.lastModified() / 1000);
+  }
+
+  public void fileSkipped(@NotNull final File source) {
+    myStatistics.fileSkipped(source);
+  }
+
+  /**
+   * Set modification time of uploaded file to the one of the local file, so that next
+   * incremental upload can compare them
+   */
+  public void fileUploaded(@NotNull final ChannelSftp channel,
+                           @NotNull final File source,
+                           @NotNull final String destination) throws SftpException {
+    final String directory = getDirectory(destination);
+    final String remoteFile = directory + (directory.endsWith("/") ? "" : "/") + source.getName();
+    channel.setMtime(remoteFile, (int) (source.lastModified() / 1000));
+    myStatistics.fileUploaded(source);
+  }
+
+  /**
+   * Count uploaded file whose modification time was already set by the transfer
+   */
+  public void fileUploaded(@NotNull final File source) {
+    myStatistics.fileUploaded(source);
+  }
+
+  @NotNull
+  private static Map<String, SftpATTRS> list(@NotNull final ChannelSftp channel,
+                                             @NotNull final String directory) throws SftpException {
+    final Map<String, SftpATTRS> result = new HashMap<String, SftpATTRS>();
+    final Vector entries;
+    try {
+      entries = channel.ls(directory);
+    } catch (SftpException e) {
+      if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+        return result;
+      }
+      throw e;
+    }
+    for (Object entry : entries) {
+      final ChannelSftp.LsEntry lsEntry = (ChannelSftp.LsEntry) entry;
+      if (!lsEntry.getAttrs().isDir()) {
+        result.put(lsEntry.getFilename(), lsEntry.getAttrs());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return destination directory under remote base without empty and "." path components
+   */
+  @NotNull
+  private String getDirectory(@NotNull final String destination) {
+    final String normalized = destination.replace('\\', '/');
+    final String path = normalized.startsWith("/") ? normalized : myRemoteBase + "/" + normalized;
+    final StringBuilder result = new StringBuilder(path.startsWith("/") ? "/" : "");
+    for (String component : path.split("/")) {
+      if (component.length() > 0 && !".".equals(component)) {
+        if (result.length() > 0 && result.charAt(result.length() - 1) != '/') {
+          result.append('/');
+        }
+        result.append(component);
+      }
+    }
+    return result.length() > 0 ? result.toString() : ".";
+  }
+}
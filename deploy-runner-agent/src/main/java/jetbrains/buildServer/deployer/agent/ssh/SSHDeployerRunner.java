@@ -27,6 +27,7 @@ import jetbrains.buildServer.agent.ssh.AgentRunningBuildSshKeyManager;
 import jetbrains.buildServer.deployer.agent.base.BaseDeployerRunner;
 import jetbrains.buildServer.deployer.agent.ssh.scp.ScpProcessAdapter;
 import jetbrains.buildServer.deployer.agent.ssh.sftp.SftpBuildProcessAdapter;
+import jetbrains.buildServer.deployer.agent.ssh.tar.TarProcessAdapter;
 import jetbrains.buildServer.deployer.common.SSHRunnerConstants;
 import org.jetbrains.annotations.NotNull;
 
@@ -60,11 +61,14 @@ public class SSHDeployerRunner extends BaseDeployerRunner {
                                             @NotNull final List<ArtifactsCollection> artifactsCollections) throws RunBuildException {
 
     final SSHSessionProvider provider = new SSHSessionProvider(context, myInternalProperties, mySshKeyManager);
+    provider.configureCompression(artifactsCollections);
     final String transport = context.getRunnerParameters().get(SSHRunnerConstants.PARAM_TRANSPORT);
     if (SSHRunnerConstants.TRANSPORT_SCP.equals(transport)) {
       return new ScpProcessAdapter(context, artifactsCollections, provider);
     } else if (SSHRunnerConstants.TRANSPORT_SFTP.equals(transport)) {
       return new SftpBuildProcessAdapter(context, artifactsCollections, provider);
+    } else if (SSHRunnerConstants.TRANSPORT_TAR.equals(transport)) {
+      return new TarProcessAdapter(context, artifactsCollections, provider);
     } else {
       throw new RunBuildException("Unknown ssh transport [" + transport + "]");
     }
@@ -23,6 +23,7 @@ import com.jcraft.jsch.agentproxy.ConnectorFactory;
 import com.jcraft.jsch.agentproxy.RemoteIdentityRepository;
 import jetbrains.buildServer.agent.BuildRunnerContext;
 import jetbrains.buildServer.agent.InternalPropertiesHolder;
+import jetbrains.buildServer.agent.impl.artifacts.ArtifactsCollection;
 import jetbrains.buildServer.agent.ssh.AgentRunningBuildSshKeyManager;
 import jetbrains.buildServer.deployer.common.DeployerRunnerConstants;
 import jetbrains.buildServer.deployer.common.SSHRunnerConstants;
@@ -36,12 +37,17 @@ import org.jetbrains.annotations.NotNull;
 import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.Map;
 
 
 public class SSHSessionProvider {
 
   public static final String TEAMCITY_DEPLOYER_SSH_CONFIG_PATH = "teamcity.deployer.ssh.config.path";
   public static final String TEAMCITY_DEPLOYER_SSH_DEFAULT_KEY = "teamcity.deployer.ssh.default.key";
+  private static final int DEFAULT_COMPRESSION_LEVEL = 6;
+  private static final double AUTO_COMPRESSION_MAX_RATIO = 0.7;
+  private static final String COMPRESSION_METHODS = "zlib@openssh.com,zlib,none";
 
   private final Logger myLog = Logger.getLogger(this.getClass());
   @NotNull
@@ -53,6 +59,9 @@ public class SSHSessionProvider {
   private String myHost;
   private int myPort;
   private String myRemotePath;
+  private final String myCompression;
+  private final int myCompressionLevel;
+  private boolean myCompressionEnabled;
   private final String myDefaultKeyPath = System.getProperty("user.home") + "/.ssh/id_rsa";
 
 
@@ -85,6 +94,41 @@ public class SSHSessionProvider {
 
     myContext = context;
     myHolder = holder;
+
+    final Map<String, String> sharedConfigParameters = context.getBuild().getSharedConfigParameters();
+    myCompression = StringUtil.emptyIfNull(sharedConfigParameters.get(SSHRunnerConstants.PARAM_SSH_COMPRESSION)).trim();
+    myCompressionEnabled = StringUtil.isTrue(myCompression);
+    myCompressionLevel = getCompressionLevel(sharedConfigParameters.get(SSHRunnerConstants.PARAM_SSH_COMPRESSION_LEVEL));
+  }
+
+  private int getCompressionLevel(final String value) {
+    if (!StringUtil.isEmptyOrSpaces(value)) {
+      try {
+        final int level = Integer.parseInt(value.trim());
+        if (level >= 1 && level <= 9) {
+          return level;
+        }
+      } catch (NumberFormatException ignored) {
+      }
+      myLog.warn("Incorrect value '" + value + "' of '" + SSHRunnerConstants.PARAM_SSH_COMPRESSION_LEVEL + "' parameter, expecting 1-9");
+    }
+    return DEFAULT_COMPRESSION_LEVEL;
+  }
+
+  /**
+   * Resolve automatic compression mode for the artifacts to upload. Compression is enabled only if
+   * a sample of the artifacts compresses well enough to pay off. Must be called before the session is created.
+   *
+   * @param artifacts artifacts to upload in this session
+   */
+  public void configureCompression(@NotNull final List<ArtifactsCollection> artifacts) {
+    if (!SSHRunnerConstants.COMPRESSION_AUTO.equalsIgnoreCase(myCompression)) {
+      return;
+    }
+    final double ratio = CompressibilityEstimator.estimateRatio(artifacts);
+    myCompressionEnabled = ratio <= AUTO_COMPRESSION_MAX_RATIO;
+    myContext.getBuild().getBuildLogger().message("Sampled artifacts compress to " + Math.round(ratio * 100) + "% of original size, " +
+                                                  "SSH compression is " + (myCompressionEnabled ? "enabled" : "disabled"));
   }
 
   private Session createSession(@NotNull BuildRunnerContext context, @NotNull InternalPropertiesHolder holder) throws JSchException {
@@ -213,8 +257,14 @@ public class SSHSessionProvider {
   }
 
   public Session getSession() throws JSchException {
-    if (mySession == null) {
+    // a new session is needed after the previous one was disconnected, e.g. to retry an upload
+    if (mySession == null || !mySession.isConnected()) {
       mySession = createSession(myContext, myHolder);
+      if (myCompressionEnabled) {
+        mySession.setConfig("compression.s2c", COMPRESSION_METHODS);
+        mySession.setConfig("compression.c2s", COMPRESSION_METHODS);
+        mySession.setConfig("compression_level", String.valueOf(myCompressionLevel));
+      }
       mySession.connect();
     }
     return mySession;
@@ -17,17 +17,24 @@
 package jetbrains.buildServer.deployer.agent.ssh.scp;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 class DirScpOperation implements ScpOperation {
   private final String myDirName;
   private final List<ScpOperation> myOps = new LinkedList<ScpOperation>();
+  private final Map<String, DirScpOperation> mySubDirs = new HashMap<String, DirScpOperation>();
+  @Nullable
+  private final File myRoot;
+  @Nullable
+  private final ScpTransferListener myListener;
 
   /**
    * Create a recursive copy of a directory
@@ -35,16 +42,21 @@ class DirScpOperation implements ScpOperation {
    * @param root - start of directory tree
    */
   public DirScpOperation(File root) {
-    File[] dirContent = root.listFiles();
-    assert root.isDirectory() && dirContent != null;
+    this(root, null);
+  }
+
+  /**
+   * Create a recursive copy of a directory. The tree is traversed while the operation executes,
+   * one directory at a time, so only the directories on the current path are kept in memory
+   *
+   * @param root     start of directory tree
+   * @param listener listener to notify before each file is sent
+   */
+  public DirScpOperation(@NotNull final File root, @Nullable final ScpTransferListener listener) {
+    assert root.isDirectory();
     myDirName = root.getName();
-    for (File file : dirContent) {
-      if (file.isDirectory()) {
-        myOps.add(new DirScpOperation(file));
-      } else {
-        myOps.add(new FileScpOperation(file));
-      }
-    }
+    myRoot = root;
+    myListener = listener;
   }
 
   /**
@@ -54,6 +66,8 @@ class DirScpOperation implements ScpOperation {
    */
   public DirScpOperation(@NotNull final String name) {
     myDirName = name;
+    myRoot = null;
+    myListener = null;
   }
 
   /**
@@ -65,21 +79,57 @@ class DirScpOperation implements ScpOperation {
     myOps.add(operation);
   }
 
+  /**
+   * Get operation for a subdirectory, creating it on first request
+   *
+   * @param name subdirectory name
+   * @return operation for subdirectory with given name
+   */
+  @NotNull
+  public DirScpOperation getOrCreateSubDir(@NotNull final String name) {
+    DirScpOperation subDir = mySubDirs.get(name);
+    if (subDir == null) {
+      subDir = new DirScpOperation(name);
+      mySubDirs.put(name, subDir);
+      myOps.add(subDir);
+    }
+    return subDir;
+  }
+
   @Override
   public void execute(@NotNull final OutputStream out,
-                      @NotNull final InputStream in) throws IOException {
+                      @NotNull final ScpAckReader in) throws IOException {
     final String command = "D0755 0 " + myDirName + "\n";
     out.write(command.getBytes());
-    out.flush();
-    ScpExecUtil.checkScpAck(in);
+    in.awaitAck();
 
-    for (ScpOperation myOp : myOps) {
-      myOp.execute(out, in);
-    }
+    executeContent(out, in);
 
     final String endDir = "E\n";
     out.write(endDir.getBytes());
-    out.flush();
-    ScpExecUtil.checkScpAck(in);
+    in.expectAck();
+  }
+
+  /**
+   * Run operations inside this directory, without entering it
+   */
+  void executeContent(@NotNull final OutputStream out,
+                      @NotNull final ScpAckReader in) throws IOException {
+    for (ScpOperation myOp : myOps) {
+      myOp.execute(out, in);
+    }
+    if (myRoot != null) {
+      final File[] dirContent = myRoot.listFiles();
+      if (dirContent == null) {
+        throw new IOException("Failed to list content of [" + myRoot.getAbsolutePath() + "]");
+      }
+      for (File file : dirContent) {
+        if (file.isDirectory()) {
+          new DirScpOperation(file, myListener).execute(out, in);
+        } else {
+          new FileScpOperation(file, myListener).execute(out, in);
+        }
+      }
+    }
   }
 }
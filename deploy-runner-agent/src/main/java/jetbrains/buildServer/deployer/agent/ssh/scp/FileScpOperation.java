@@ -18,6 +18,7 @@ package jetbrains.buildServer.deployer.agent.ssh.scp;
 
 import jetbrains.buildServer.util.FileUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 
@@ -27,23 +28,43 @@ import java.io.*;
  */
 class FileScpOperation implements ScpOperation {
   final File myFile;
+  @Nullable
+  private final ScpTransferListener myListener;
+  private final boolean myPreserveTime;
 
-  public FileScpOperation(File file) {
+  public FileScpOperation(File file, @Nullable ScpTransferListener listener) {
+    this(file, listener, false);
+  }
+
+  /**
+   * @param preserveTime send modification time of the file before its header, remote scp applies it
+   *                     to the copy even when it was started without '-p'
+   */
+  public FileScpOperation(File file, @Nullable ScpTransferListener listener, boolean preserveTime) {
     assert file.isFile();
     myFile = file;
+    myListener = listener;
+    myPreserveTime = preserveTime;
   }
 
   @Override
   public void execute(@NotNull final OutputStream out,
-                      @NotNull final InputStream in) throws IOException {
+                      @NotNull final ScpAckReader in) throws IOException {
+    if (myListener != null) {
+      myListener.beforeTransfer(myFile);
+    }
+    if (myPreserveTime) {
+      final long mtime = myFile.lastModified() / 1000;
+      out.write(("T" + mtime + " 0 " + mtime + " 0\n").getBytes());
+      in.awaitAck();
+    }
     final String command = "C0755 " + myFile.length() + " " + myFile.getName() + "\n";
     out.write(command.getBytes());
-    out.flush();
-    ScpExecUtil.checkScpAck(in);
+    in.awaitAck();
 
     // send the content
     FileInputStream fis = null;
-    byte[] buf = new byte[1024];
+    final byte[] buf = in.getTransferBuffer();
     try {
       fis = new FileInputStream(myFile);
       while (true) {
@@ -58,7 +79,6 @@ class FileScpOperation implements ScpOperation {
     // send '\0'
     buf[0] = 0;
     out.write(buf, 0, 1);
-    out.flush();
-    ScpExecUtil.checkScpAck(in);
+    in.expectAck();
   }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.deployer.agent.ssh.scp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads acknowledgements of remote scp. In synchronous mode every command waits for its ack,
+ * otherwise up to the given number of commands may be sent ahead of their acks.
+ */
+public class ScpAckReader {
+  private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+  private final InputStream myIn;
+  private final OutputStream myOut;
+  private final int myMaxPendingAcks;
+  private int myPendingAcks = 0;
+  private byte[] myTransferBuffer;
+
+  /**
+   * @param in              input stream of remote scp
+   * @param out             output stream of remote scp, flushed before waiting for acks
+   * @param maxPendingAcks  number of trailing commands that may stay unacknowledged, 0 for synchronous mode
+   */
+  public ScpAckReader(@NotNull final InputStream in,
+                      @NotNull final OutputStream out,
+                      final int maxPendingAcks) {
+    myIn = new BufferedInputStream(in);
+    myOut = out;
+    myMaxPendingAcks = maxPendingAcks;
+  }
+
+  /**
+   * Register a trailing command that was written to the output stream and expects an ack,
+   * i.e. end of file content or end of directory. Nothing that is sent next depends on its ack,
+   * so in pipelined mode it is read later.
+   */
+  public void expectAck() throws IOException {
+    myPendingAcks++;
+    if (myPendingAcks > myMaxPendingAcks) {
+      myOut.flush();
+      while (myPendingAcks > myMaxPendingAcks) {
+        readAck();
+      }
+    } else {
+      // collect acks that already arrived, so that remote errors are reported early
+      while (myPendingAcks > 0 && myIn.available() > 0) {
+        readAck();
+      }
+    }
+  }
+
+  /**
+   * Register a file or directory header that was written to the output stream and wait for its ack.
+   * Remote scp must accept a header before the content that follows it is sent.
+   */
+  public void awaitAck() throws IOException {
+    myPendingAcks++;
+    awaitAcks();
+  }
+
+  /**
+   * Buffer for file content, allocated once and shared by all operations executed over the channel
+   */
+  @NotNull
+  public byte[] getTransferBuffer() {
+    if (myTransferBuffer == null) {
+      myTransferBuffer = new byte[TRANSFER_BUFFER_SIZE];
+    }
+    return myTransferBuffer;
+  }
+
+  /**
+   * Wait until all sent commands are acknowledged
+   */
+  public void awaitAcks() throws IOException {
+    myOut.flush();
+    while (myPendingAcks > 0) {
+      readAck();
+    }
+  }
+
+  private void readAck() throws IOException {
+    if (ScpExecUtil.checkScpAck(myIn) == -1) {
+      throw new IOException("Remote system closed connection before acknowledging all commands");
+    }
+    myPendingAcks--;
+  }
+}
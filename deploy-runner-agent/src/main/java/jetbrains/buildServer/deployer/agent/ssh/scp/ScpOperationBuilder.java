@@ -22,66 +22,87 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
 
 public class ScpOperationBuilder {
 
   /**
-   * Build chain of scp operations to copy source file to destination path
+   * Build a single tree of scp operations to copy all files to their destinations. Each remote
+   * directory is entered once and all files and subdirectories that go there are sent inside it.
    *
-   * @param sourceFile      source file to copy. Must be a file, not a directory
-   * @param destinationPath relative path to destination
-   * @return top of resulting operations chain
+   * @param fileDestinations maps of source files to relative destination paths
+   * @param listener         listener to notify before each file is sent
+   * @param preserveTimes    set modification times of remote copies to the ones of source files
+   * @return operation that executes whole tree
    */
-  public static ScpOperation getCopyFileOperation(@NotNull final File sourceFile,
-                                                  @NotNull final String destinationPath) throws IOException {
+  public static ScpOperation getCopyFilesOperation(@NotNull final List<Map<File, String>> fileDestinations,
+                                                   @Nullable final ScpTransferListener listener,
+                                                   final boolean preserveTimes) throws IOException {
+    return buildTree(fileDestinations, true, listener, preserveTimes);
+  }
 
-    if (!sourceFile.exists()) {
-      throw new IOException("Source [" + sourceFile.getAbsolutePath() + "] does not exists");
-    }
 
-    if (sourceFile.isDirectory()) {
-      throw new IOException("Source [" + sourceFile.getAbsolutePath() + "] is a directory, but a file is expected");
+  /**
+   * Build operation to copy a local directory with all its content. The tree is read while the
+   * operation executes, so it is not held in memory as a whole.
+   *
+   * @param directory local directory to copy
+   * @param listener  listener to notify before each file is sent
+   * @return operation that creates the directory in remote working directory and copies content into it
+   */
+  public static ScpOperation getCopyDirectoryOperation(@NotNull final File directory,
+                                                       @Nullable final ScpTransferListener listener) throws IOException {
+    if (!directory.isDirectory()) {
+      throw new IOException("Source [" + directory.getAbsolutePath() + "] is not a directory");
     }
-
-    ScpOperation fileOperation = new FileScpOperation(sourceFile);
-
-    return doCreatePathOperation(destinationPath, fileOperation);
+    return new DirScpOperation(directory, listener);
   }
 
 
   /**
-   * Build chain of scp opertaions to create empty directory.
+   * Build a single tree of scp operations to create all destination directories of given files,
+   * without copying the files themselves.
    *
-   * @param remotePath path to create
-   * @return top of resulting operations chain
+   * @param fileDestinations maps of source files to relative destination paths
+   * @return operation that executes whole tree
    */
-
-  public static ScpOperation getCreatePathOperation(@NotNull final String remotePath) {
-    return doCreatePathOperation(remotePath, null);
+  public static ScpOperation getCreateDirectoriesOperation(@NotNull final List<Map<File, String>> fileDestinations) throws IOException {
+    return buildTree(fileDestinations, false, null, false);
   }
 
 
-  private static ScpOperation doCreatePathOperation(@NotNull final String remotePath,
-                                                    @Nullable final ScpOperation chainTailOperation) {
-    final String normalisedPath = remotePath.replaceAll("\\\\", "/");
-    File remoteDir = new File(normalisedPath);
-    DirScpOperation childOperation = new DirScpOperation(remoteDir.getName());
-    if (null != chainTailOperation) {
-      childOperation.add(chainTailOperation);
-    }
-    remoteDir = remoteDir.getParentFile();
-    String name = remoteDir != null ? remoteDir.getName() : "";
-    while (remoteDir != null && !StringUtil.isEmpty(name)) {
-
-      final DirScpOperation directoryOperation = new DirScpOperation(name);
-      directoryOperation.add(childOperation);
-
-      childOperation = directoryOperation;
-      remoteDir = remoteDir.getParentFile();
-      if (remoteDir != null) {
-        name = remoteDir.getName();
+  private static ScpOperation buildTree(@NotNull final List<Map<File, String>> fileDestinations,
+                                        final boolean includeFiles,
+                                        @Nullable final ScpTransferListener listener,
+                                        final boolean preserveTimes) throws IOException {
+    final DirScpOperation root = new DirScpOperation("");
+    for (Map<File, String> filePathMap : fileDestinations) {
+      for (Map.Entry<File, String> fileDestination : filePathMap.entrySet()) {
+        final File sourceFile = fileDestination.getKey();
+        if (!sourceFile.exists()) {
+          throw new IOException("Source [" + sourceFile.getAbsolutePath() + "] does not exists");
+        }
+        if (sourceFile.isDirectory()) {
+          throw new IOException("Source [" + sourceFile.getAbsolutePath() + "] is a directory, but a file is expected");
+        }
+        DirScpOperation dir = root;
+        for (String name : fileDestination.getValue().replaceAll("\\\\", "/").split("/")) {
+          if (!StringUtil.isEmpty(name)) {
+            dir = dir.getOrCreateSubDir(name);
+          }
+        }
+        if (includeFiles) {
+          dir.add(new FileScpOperation(sourceFile, listener, preserveTimes));
+        }
       }
     }
-    return childOperation;
+    return new ScpOperation() {
+      @Override
+      public void execute(@NotNull final OutputStream out, @NotNull final ScpAckReader in) throws IOException {
+        root.executeContent(out, in);
+      }
+    };
   }
 }
@@ -18,25 +18,35 @@ package jetbrains.buildServer.deployer.agent.ssh.scp;
 
 import com.intellij.openapi.diagnostic.Logger;
 import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
 import jetbrains.buildServer.agent.BuildFinishedStatus;
 import jetbrains.buildServer.agent.BuildRunnerContext;
 import jetbrains.buildServer.agent.impl.artifacts.ArtifactsCollection;
+import jetbrains.buildServer.deployer.agent.DeployerAgentUtils;
 import jetbrains.buildServer.deployer.agent.SyncBuildProcessAdapter;
+import jetbrains.buildServer.deployer.agent.UploadInterruptedException;
+import jetbrains.buildServer.deployer.agent.UploadStatistics;
+import jetbrains.buildServer.deployer.agent.ssh.IncrementalSync;
 import jetbrains.buildServer.deployer.agent.ssh.SSHSessionProvider;
+import jetbrains.buildServer.deployer.common.SSHRunnerConstants;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.WaitFor;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static jetbrains.buildServer.deployer.agent.DeployerAgentUtils.logBuildProblem;
 
@@ -45,9 +55,15 @@ public class ScpProcessAdapter extends SyncBuildProcessAdapter {
   private static final Logger LOG = Logger.getInstance(ScpProcessAdapter.class.getName());
   private final List<ArtifactsCollection> myArtifacts;
   private static final Logger myInternalLog = Logger.getInstance(ScpProcessAdapter.class.getName());
+  private static final int PIPELINED_MAX_PENDING_ACKS = 256;
+  private static final long INTERRUPT_POLL_INTERVAL_MS = 100;
 
 
   private SSHSessionProvider mySessionProvider;
+  private final boolean myPipelining;
+  private final int myParallelChannels;
+  private final boolean myIncremental;
+  private final UploadStatistics myStatistics = new UploadStatistics();
 
   public ScpProcessAdapter(@NotNull final BuildRunnerContext context,
                            @NotNull final List<ArtifactsCollection> artifactsCollections,
@@ -55,7 +71,27 @@ public class ScpProcessAdapter extends SyncBuildProcessAdapter {
     super(context.getBuild().getBuildLogger());
     myArtifacts = artifactsCollections;
     mySessionProvider = sessionProvider;
+    myPipelining = StringUtil.isTrue(context.getBuild().getSharedConfigParameters().get(SSHRunnerConstants.PARAM_SCP_PIPELINING));
+    myParallelChannels = getParallelChannels(context.getBuild().getSharedConfigParameters().get(SSHRunnerConstants.PARAM_PARALLEL_CHANNELS));
+    myIncremental = StringUtil.isTrue(context.getBuild().getSharedConfigParameters().get(SSHRunnerConstants.PARAM_SSH_INCREMENTAL));
+  }
 
+  private static int getParallelChannels(final String value) {
+    if (StringUtil.isEmptyOrSpaces(value)) {
+      return 1;
+    }
+    try {
+      final int result = Math.max(1, Integer.parseInt(value.trim()));
+      if (result > SSHRunnerConstants.MAX_PARALLEL_CHANNELS) {
+        LOG.warn("Value " + result + " of '" + SSHRunnerConstants.PARAM_PARALLEL_CHANNELS + "' parameter exceeds the number of channels " +
+                 "SSH servers allow per connection by default, using " + SSHRunnerConstants.MAX_PARALLEL_CHANNELS);
+        return SSHRunnerConstants.MAX_PARALLEL_CHANNELS;
+      }
+      return result;
+    } catch (NumberFormatException e) {
+      LOG.warn("Incorrect value '" + value + "' of '" + SSHRunnerConstants.PARAM_PARALLEL_CHANNELS + "' parameter, using single channel");
+      return 1;
+    }
   }
 
   @Override
@@ -89,7 +125,7 @@ public class ScpProcessAdapter extends SyncBuildProcessAdapter {
           final Map<File, String> newPathMap = new HashMap<File, String>();
           for (Map.Entry<File, String> fileTargetEntry : artifactsCollection.getFilePathMap().entrySet()) {
             final String oldTarget = fileTargetEntry.getValue();
-            newPathMap.put(fileTargetEntry.getKey(), escapedRemotePath + "/" + oldTarget);
+            newPathMap.put(fileTargetEntry.getKey(), StringUtil.isEmpty(escapedRemotePath) ? oldTarget : escapedRemotePath + "/" + oldTarget);
           }
           final ArtifactsCollection newCollection = new ArtifactsCollection(artifactsCollection.getSourcePath(), artifactsCollection.getTargetPath(), newPathMap);
           if (isRemoteBaseAbsolute) {
@@ -104,6 +140,9 @@ public class ScpProcessAdapter extends SyncBuildProcessAdapter {
       upload(session, ".", relativeDestinations);
       upload(session, "/", absDestinations);
 
+      if (myIncremental) {
+        myLogger.message(myStatistics.getSummary());
+      }
       return BuildFinishedStatus.FINISHED_SUCCESS;
     } catch (JSchException e) {
       logBuildProblem(myLogger, e.getMessage());
@@ -113,6 +152,10 @@ public class ScpProcessAdapter extends SyncBuildProcessAdapter {
       logBuildProblem(myLogger, e.getMessage());
       LOG.warnAndDebugDetails("Error executing SCP command", e);
       return BuildFinishedStatus.FINISHED_FAILED;
+    } catch (SftpException e) {
+      logBuildProblem(myLogger, e.getMessage());
+      LOG.warnAndDebugDetails("Error reading remote file attributes", e);
+      return BuildFinishedStatus.FINISHED_FAILED;
     } finally {
       if (session != null) {
         session.disconnect();
@@ -122,15 +165,175 @@ public class ScpProcessAdapter extends SyncBuildProcessAdapter {
 
   private void upload(final @NotNull Session session,
                       final @NotNull String escapedRemoteBase,
-                      final @NotNull List<ArtifactsCollection> artifacts) throws IOException, JSchException {
+                      final @NotNull List<ArtifactsCollection> allArtifacts) throws IOException, JSchException, SftpException {
 
     assert session.isConnected();
 
     // skip empty collections
-    if (artifacts.size() == 0) {
+    if (allArtifacts.size() == 0) {
       return;
     }
 
+    List<ArtifactsCollection> artifacts = allArtifacts;
+    IncrementalSync sync = null;
+    if (myIncremental) {
+      // scp cannot list remote directories, file attributes are read over sftp
+      final ChannelSftp sftpChannel = (ChannelSftp) session.openChannel("sftp");
+      try {
+        sftpChannel.connect();
+        sync = new IncrementalSync(escapedRemoteBase, myStatistics);
+        artifacts = sync.filterChanged(sftpChannel, allArtifacts);
+      } finally {
+        sftpChannel.disconnect();
+      }
+      if (artifacts.isEmpty()) {
+        return;
+      }
+    }
+
+    // modification times are sent by scp along with the files where the remote side accepts them
+    final boolean sendTimes = sync != null && acceptsTimeRecords(session);
+    final List<ScpChannel> channels = new ArrayList<ScpChannel>();
+    try {
+      final List<List<ArtifactsCollection>> shares = DeployerAgentUtils.splitArtifacts(artifacts, myParallelChannels);
+      if (shares.size() == 1) {
+        channels.add(openChannel(session, escapedRemoteBase));
+        transfer(channels.get(0), artifacts, sendTimes);
+      } else {
+        // concurrent 'D' commands for the same directory may fail on remote side, create all directories first
+        final ScpChannel dirsChannel = openChannel(session, escapedRemoteBase);
+        try {
+          dirsChannel.execute(ScpOperationBuilder.getCreateDirectoriesOperation(getFileDestinations(artifacts)));
+        } finally {
+          // free the channel before the upload channels are opened
+          dirsChannel.close();
+        }
+        for (int i = 0; i < shares.size(); i++) {
+          channels.add(openChannel(session, escapedRemoteBase));
+        }
+        transferInParallel(channels, shares, sendTimes);
+      }
+    } finally {
+      for (ScpChannel channel : channels) {
+        channel.close();
+      }
+    }
+
+    if (sync != null) {
+      if (sendTimes) {
+        for (ArtifactsCollection artifactCollection : artifacts) {
+          for (File file : artifactCollection.getFilePathMap().keySet()) {
+            sync.fileUploaded(file);
+          }
+        }
+      } else {
+        setModificationTimes(session, sync, artifacts);
+      }
+    }
+    for (ArtifactsCollection artifactCollection : artifacts) {
+      myLogger.message("Uploaded [" + artifactCollection.getFilePathMap().size() + "] files for [" + artifactCollection.getSourcePath() + "] pattern");
+    }
+  }
+
+  /**
+   * OpenSSH scp applies 'T' records even when started without '-p'. Apache SSHD sink does not
+   * acknowledge them, modification times are set over sftp after the transfer instead.
+   */
+  private static boolean acceptsTimeRecords(@NotNull final Session session) {
+    final String serverVersion = session.getServerVersion();
+    return serverVersion == null || !serverVersion.toUpperCase().contains("-SSHD-");
+  }
+
+  private void setModificationTimes(@NotNull final Session session,
+                                    @NotNull final IncrementalSync sync,
+                                    @NotNull final List<ArtifactsCollection> artifacts) throws JSchException, SftpException {
+    final ChannelSftp sftpChannel = (ChannelSftp) session.openChannel("sftp");
+    try {
+      sftpChannel.connect();
+      for (ArtifactsCollection artifactCollection : artifacts) {
+        for (Map.Entry<File, String> fileTargetEntry : artifactCollection.getFilePathMap().entrySet()) {
+          checkIsInterrupted();
+          sync.fileUploaded(sftpChannel, fileTargetEntry.getKey(), fileTargetEntry.getValue());
+        }
+      }
+    } finally {
+      sftpChannel.disconnect();
+    }
+  }
+
+  private void transferInParallel(@NotNull final List<ScpChannel> channels,
+                                  @NotNull final List<List<ArtifactsCollection>> shares,
+                                  final boolean sendTimes) throws IOException {
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    final List<Thread> uploadThreads = new ArrayList<Thread>();
+    for (int i = 0; i < shares.size(); i++) {
+      final ScpChannel channel = channels.get(i);
+      final List<ArtifactsCollection> share = shares.get(i);
+      final Thread uploadThread = new Thread(new Runnable() {
+        public void run() {
+          try {
+            transfer(channel, share, sendTimes);
+          } catch (UploadInterruptedException e) {
+            // main thread reports interruption
+          } catch (Exception e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      }, "SCP upload " + (i + 1) + "/" + shares.size());
+      uploadThread.setDaemon(true);
+      uploadThreads.add(uploadThread);
+    }
+    myLogger.message("Uploading via " + uploadThreads.size() + " SCP channels");
+    for (Thread uploadThread : uploadThreads) {
+      uploadThread.start();
+    }
+
+    new WaitFor(Long.MAX_VALUE, INTERRUPT_POLL_INTERVAL_MS) {
+      @Override
+      protected boolean condition() {
+        return DeployerAgentUtils.allTerminated(uploadThreads) || isInterrupted() || failure.get() != null;
+      }
+    };
+
+    if (!DeployerAgentUtils.allTerminated(uploadThreads)) {
+      // unblock threads stuck in channel I/O
+      for (ScpChannel channel : channels) {
+        channel.close();
+      }
+    }
+    checkIsInterrupted();
+    final Exception e = failure.get();
+    if (e instanceof IOException) {
+      throw (IOException) e;
+    } else if (e != null) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  private void transfer(@NotNull final ScpChannel channel,
+                        @NotNull final List<ArtifactsCollection> artifacts,
+                        final boolean sendTimes) throws IOException {
+    channel.execute(ScpOperationBuilder.getCopyFilesOperation(getFileDestinations(artifacts), new ScpTransferListener() {
+      @Override
+      public void beforeTransfer(@NotNull final File file) {
+        myInternalLog.debug("Transferring [" + file.getAbsolutePath() + "]");
+        checkIsInterrupted();
+      }
+    }, sendTimes));
+  }
+
+  @NotNull
+  private static List<Map<File, String>> getFileDestinations(@NotNull final List<ArtifactsCollection> artifacts) {
+    final List<Map<File, String>> fileDestinations = new ArrayList<Map<File, String>>();
+    for (ArtifactsCollection artifactCollection : artifacts) {
+      fileDestinations.add(artifactCollection.getFilePathMap());
+    }
+    return fileDestinations;
+  }
+
+  @NotNull
+  private ScpChannel openChannel(final @NotNull Session session,
+                                 final @NotNull String escapedRemoteBase) throws IOException, JSchException {
     // exec 'scp -rt <remoteBase>' remotely
     final String command = "scp -rt " + (StringUtil.isEmptyOrSpaces(escapedRemoteBase) ? "." : escapedRemoteBase);
     final ChannelExec execChannel = (ChannelExec) session.openChannel("exec");
@@ -140,28 +343,48 @@ public class ScpProcessAdapter extends SyncBuildProcessAdapter {
     final OutputStream out = execChannel.getOutputStream();
     final InputStream in = execChannel.getInputStream();
 
-    execChannel.connect();
-    ScpExecUtil.checkScpAck(in);
-
+    final ScpChannel channel = new ScpChannel(execChannel, out, in, myPipelining ? PIPELINED_MAX_PENDING_ACKS : 0);
     try {
-      for (ArtifactsCollection artifactCollection : artifacts) {
-        int count = 0;
-        for (Map.Entry<File, String> filePathEntry : artifactCollection.getFilePathMap().entrySet()) {
-          final File source = filePathEntry.getKey();
-          final String destination = filePathEntry.getValue();
-          final ScpOperation operationChain = ScpOperationBuilder.getCopyFileOperation(source, destination);
-          myInternalLog.debug("Transferring [" + source.getAbsolutePath() + "] to [" + destination + "]");
-          checkIsInterrupted();
-          operationChain.execute(out, in);
-          myInternalLog.debug("done transferring [" + source.getAbsolutePath() + "]");
-          count++;
-        }
-        myLogger.message("Uploaded [" + count + "] files for [" + artifactCollection.getSourcePath() + "] pattern");
-      }
-    } finally {
-      FileUtil.close(out);
-      FileUtil.close(in);
-      execChannel.disconnect();
+      execChannel.connect();
+      ScpExecUtil.checkScpAck(in);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    } catch (JSchException e) {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+
+  /**
+   * Remote 'scp -t' process with its streams
+   */
+  private static class ScpChannel {
+    private final ChannelExec myChannel;
+    private final OutputStream myOut;
+    private final InputStream myIn;
+    private final ScpAckReader myAcks;
+
+    private ScpChannel(@NotNull final ChannelExec channel,
+                       @NotNull final OutputStream out,
+                       @NotNull final InputStream in,
+                       final int maxPendingAcks) {
+      myChannel = channel;
+      myOut = out;
+      myIn = in;
+      myAcks = new ScpAckReader(in, out, maxPendingAcks);
+    }
+
+    private void execute(@NotNull final ScpOperation operation) throws IOException {
+      operation.execute(myOut, myAcks);
+      myAcks.awaitAcks();
+    }
+
+    private void close() {
+      FileUtil.close(myOut);
+      FileUtil.close(myIn);
+      myChannel.disconnect();
     }
   }
 }
@@ -28,19 +28,49 @@ import jetbrains.buildServer.agent.impl.artifacts.ArtifactsCollection;
 import jetbrains.buildServer.deployer.agent.DeployerAgentUtils;
 import jetbrains.buildServer.deployer.agent.SyncBuildProcessAdapter;
 import jetbrains.buildServer.deployer.agent.UploadInterruptedException;
+import jetbrains.buildServer.deployer.agent.UploadStatistics;
+import jetbrains.buildServer.deployer.agent.ssh.IncrementalSync;
 import jetbrains.buildServer.deployer.agent.ssh.SSHSessionProvider;
+import jetbrains.buildServer.deployer.common.SSHRunnerConstants;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.WaitFor;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
-import java.util.List;
-import java.util.Map;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class SftpBuildProcessAdapter extends SyncBuildProcessAdapter {
 
   private static final Logger LOG = Logger.getInstance(SftpBuildProcessAdapter.class.getName());
   private final List<ArtifactsCollection> myArtifacts;
+  private static final int DEFAULT_MAX_REQUESTS = 64;
+  private static final long INTERRUPT_POLL_INTERVAL_MS = 100;
+  private static final long DEFAULT_STRIPE_THRESHOLD = 64L * 1024 * 1024;
+  private static final int STRIPE_BUFFER_SIZE = 32 * 1024;
+  private static final String TEMP_NAME_SUFFIX = ".teamcity-upload";
+  private static final long INITIAL_RETRY_DELAY_MS = 1000;
+  private static final long MAX_RETRY_DELAY_MS = 60 * 1000;
   private SSHSessionProvider mySessionProvider;
+  private final int myMaxRequests;
+  private final int myParallelChannels;
+  private final int myStripes;
+  private final long myStripeThreshold;
+  private final boolean myResume;
+  private final long myResumeCheckSize;
+  private final int myRetries;
+  // source path and destination of files uploaded by previous attempts
+  private final Set<String> myCompletedFiles = Collections.synchronizedSet(new HashSet<String>());
+  // source path and temporary file written by previous attempts
+  private final Set<String> myStartedFiles = Collections.synchronizedSet(new HashSet<String>());
+  // source path, destination and index of stripes of large files uploaded by previous attempts
+  private final Set<String> myCompletedStripes = Collections.synchronizedSet(new HashSet<String>());
+  private final UploadStatistics myStatistics = new UploadStatistics();
+  @Nullable
+  private final IncrementalSync mySync;
 
   public SftpBuildProcessAdapter(@NotNull final BuildRunnerContext context,
                                  @NotNull final List<ArtifactsCollection> artifactsCollections,
@@ -48,69 +78,599 @@ public class SftpBuildProcessAdapter extends SyncBuildProcessAdapter {
     super(context.getBuild().getBuildLogger());
     myArtifacts = artifactsCollections;
     mySessionProvider = sessionProvider;
+    myMaxRequests = getIntParameter(context, SSHRunnerConstants.PARAM_SFTP_MAX_REQUESTS, DEFAULT_MAX_REQUESTS);
+    myParallelChannels = getChannelsParameter(context, SSHRunnerConstants.PARAM_PARALLEL_CHANNELS);
+    myStripes = getChannelsParameter(context, SSHRunnerConstants.PARAM_SFTP_STRIPES);
+    myStripeThreshold = getLongParameter(context, SSHRunnerConstants.PARAM_SFTP_STRIPE_THRESHOLD, DEFAULT_STRIPE_THRESHOLD);
+    myResume = Boolean.parseBoolean(context.getBuild().getSharedConfigParameters().get(SSHRunnerConstants.PARAM_SFTP_RESUME));
+    myResumeCheckSize = getLongParameter(context, SSHRunnerConstants.PARAM_SFTP_RESUME_CHECK_SIZE, 0);
+    myRetries = getIntParameter(context, SSHRunnerConstants.PARAM_SFTP_RETRIES, 0);
+    mySync = Boolean.parseBoolean(context.getBuild().getSharedConfigParameters().get(SSHRunnerConstants.PARAM_SSH_INCREMENTAL))
+        ? new IncrementalSync(".", myStatistics) : null;
+  }
+
+  /**
+   * @return number of channels to open at once, not more than the server is likely to allow
+   */
+  private static int getChannelsParameter(@NotNull final BuildRunnerContext context,
+                                          @NotNull final String name) {
+    final int result = getIntParameter(context, name, 1);
+    if (result > SSHRunnerConstants.MAX_PARALLEL_CHANNELS) {
+      LOG.warn("Value " + result + " of '" + name + "' parameter exceeds the number of channels SSH servers allow per connection by default, " +
+               "using " + SSHRunnerConstants.MAX_PARALLEL_CHANNELS);
+      return SSHRunnerConstants.MAX_PARALLEL_CHANNELS;
+    }
+    return result;
+  }
+
+  private static int getIntParameter(@NotNull final BuildRunnerContext context,
+                                     @NotNull final String name,
+                                     final int defaultValue) {
+    return (int) Math.min(Integer.MAX_VALUE, getLongParameter(context, name, defaultValue));
+  }
+
+  private static long getLongParameter(@NotNull final BuildRunnerContext context,
+                                       @NotNull final String name,
+                                       final long defaultValue) {
+    final String value = context.getBuild().getSharedConfigParameters().get(name);
+    if (StringUtil.isEmptyOrSpaces(value)) {
+      return defaultValue;
+    }
+    try {
+      final long result = Long.parseLong(value.trim());
+      if (result > 0) {
+        return result;
+      }
+    } catch (NumberFormatException ignored) {
+    }
+    LOG.warn("Incorrect value '" + value + "' of '" + name + "' parameter, using default value " + defaultValue);
+    return defaultValue;
   }
 
   @Override
   public BuildFinishedStatus runProcess() {
+    int attempt = 0;
+    while (true) {
+      final Exception failure;
+      try {
+        transfer();
+        for (ArtifactsCollection artifactsCollection : myArtifacts) {
+          myLogger.message("Uploaded [" + artifactsCollection.getFilePathMap().size() + "] files for [" + artifactsCollection.getSourcePath() + "] pattern");
+        }
+        if (mySync != null) {
+          myLogger.message(myStatistics.getSummary());
+        }
+        return BuildFinishedStatus.FINISHED_SUCCESS;
+      } catch (UploadInterruptedException e) {
+        myLogger.warning("SFTP upload interrupted.");
+        return BuildFinishedStatus.FINISHED_FAILED;
+      } catch (JSchException e) {
+        failure = e;
+      } catch (SftpException e) {
+        failure = e;
+      }
+      attempt++;
+      if (!shouldRetry(failure, attempt)) {
+        DeployerAgentUtils.logBuildProblem(myLogger, failure.getMessage());
+        LOG.warnAndDebugDetails("Error executing SFTP command", failure);
+        return BuildFinishedStatus.FINISHED_FAILED;
+      }
+      final long delay = Math.min(INITIAL_RETRY_DELAY_MS << (attempt - 1), MAX_RETRY_DELAY_MS);
+      myLogger.warning("SFTP upload failed: " + failure.getMessage() + ". Retrying in " + delay / 1000 + "s" +
+                       " (retry " + attempt + " of " + myRetries + ")");
+      LOG.warnAndDebugDetails("Error executing SFTP command, retrying", failure);
+      if (!pause(delay)) {
+        myLogger.warning("SFTP upload interrupted.");
+        return BuildFinishedStatus.FINISHED_FAILED;
+      }
+    }
+  }
+
+  private boolean shouldRetry(@NotNull final Exception e, final int attempt) {
+    if (attempt > myRetries || isInterrupted()) {
+      return false;
+    }
+    // these statuses would be returned again by another attempt
+    if (e instanceof SftpException) {
+      final int id = ((SftpException) e).id;
+      return id != ChannelSftp.SSH_FX_PERMISSION_DENIED
+          && id != ChannelSftp.SSH_FX_NO_SUCH_FILE
+          && id != ChannelSftp.SSH_FX_OP_UNSUPPORTED;
+    }
+    return true;
+  }
+
+  /**
+   * @return false if upload was interrupted during the pause
+   */
+  private boolean pause(final long millis) {
+    final long end = System.currentTimeMillis() + millis;
+    while (System.currentTimeMillis() < end) {
+      if (isInterrupted()) {
+        return false;
+      }
+      try {
+        Thread.sleep(Math.min(INTERRUPT_POLL_INTERVAL_MS, end - System.currentTimeMillis()));
+      } catch (InterruptedException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void transfer() throws JSchException, SftpException {
     final String escapedRemotePath;
     Session session = null;
+    final List<ChannelSftp> channels = new ArrayList<ChannelSftp>();
 
     try {
       escapedRemotePath = mySessionProvider.getRemotePath();
       session = mySessionProvider.getSession();
 
-      if (isInterrupted()) return BuildFinishedStatus.FINISHED_FAILED;
+      checkIsInterrupted();
 
-      ChannelSftp channel = (ChannelSftp) session.openChannel("sftp");
-      channel.connect();
+      final ChannelSftp channel = openChannel(session);
+      channels.add(channel);
 
       if (StringUtil.isNotEmpty(escapedRemotePath)) {
-        createRemotePath(channel, escapedRemotePath);
+        createRemotePath(channel, escapedRemotePath, new HashSet<String>());
         channel.cd(escapedRemotePath);
       }
 
       myLogger.message("Starting upload via SFTP to " + mySessionProvider.getSessionString());
       final String baseDir = channel.pwd();
-      for (ArtifactsCollection artifactsCollection : myArtifacts) {
-        int count = 0;
-        for (Map.Entry<File, String> fileStringEntry : artifactsCollection.getFilePathMap().entrySet()) {
+
+      List<ArtifactsCollection> artifacts = getPendingArtifacts(channel);
+
+      // all directories are created in one step, so that parallel uploads do not race for them
+      final Set<String> existingDirs = new HashSet<String>();
+      for (ArtifactsCollection artifactsCollection : artifacts) {
+        for (String destination : artifactsCollection.getFilePathMap().values()) {
           checkIsInterrupted();
-          final File source = fileStringEntry.getKey();
-          final String value = fileStringEntry.getValue();
-          final String destinationPath = "".equals(value) ? "." : value;
-          createRemotePath(channel, destinationPath);
-          LOG.debug("Transferring [" + source.getAbsolutePath() + "] to [" + destinationPath + "] under [" + baseDir + "]");
-          channel.put(source.getAbsolutePath(), destinationPath);
-          LOG.debug("done transferring [" + source.getAbsolutePath() + "]");
-          count++;
+          createRemotePath(channel, getDestinationPath(destination), existingDirs);
         }
-        myLogger.message("Uploaded [" + count + "] files for [" + artifactsCollection.getSourcePath() + "] pattern");
-      }
-      channel.disconnect();
-      return BuildFinishedStatus.FINISHED_SUCCESS;
-    } catch (UploadInterruptedException e) {
-      myLogger.warning("SFTP upload interrupted.");
-      return BuildFinishedStatus.FINISHED_FAILED;
-    } catch (JSchException e) {
-      DeployerAgentUtils.logBuildProblem(myLogger, e.getMessage());
-      LOG.warnAndDebugDetails("Error executing SFTP command", e);
-      return BuildFinishedStatus.FINISHED_FAILED;
-    } catch (SftpException e) {
-      DeployerAgentUtils.logBuildProblem(myLogger, e.getMessage());
-      LOG.warnAndDebugDetails("Error executing SFTP command", e);
-      return BuildFinishedStatus.FINISHED_FAILED;
+      }
+
+      if (myStripes > 1) {
+        artifacts = uploadLargeFiles(session, channels, baseDir, artifacts);
+      }
+
+      final List<List<ArtifactsCollection>> shares = DeployerAgentUtils.splitArtifacts(artifacts, myParallelChannels);
+      if (shares.size() == 1) {
+        upload(channel, baseDir, shares.get(0));
+      } else {
+        openChannels(session, channels, baseDir, shares.size());
+        uploadInParallel(channels.subList(0, shares.size()), baseDir, shares);
+      }
     } finally {
+      for (ChannelSftp channel : channels) {
+        channel.disconnect();
+      }
       if (session != null) {
         session.disconnect();
       }
     }
   }
 
+  /**
+   * @return artifacts without files uploaded by previous attempts and, in incremental mode, unchanged files
+   */
+  @NotNull
+  private List<ArtifactsCollection> getPendingArtifacts(@NotNull final ChannelSftp channel) throws SftpException {
+    if (myCompletedFiles.isEmpty() && mySync == null) {
+      return myArtifacts;
+    }
+    final List<ArtifactsCollection> result = new ArrayList<ArtifactsCollection>();
+    for (ArtifactsCollection artifactsCollection : myArtifacts) {
+      final Map<File, String> pendingFiles = new LinkedHashMap<File, String>();
+      for (Map.Entry<File, String> fileStringEntry : artifactsCollection.getFilePathMap().entrySet()) {
+        final File source = fileStringEntry.getKey();
+        final String destination = fileStringEntry.getValue();
+        if (myCompletedFiles.contains(getFileKey(source, destination))) {
+          continue;
+        }
+        checkIsInterrupted();
+        if (mySync != null && mySync.isUpToDate(channel, source, destination)) {
+          mySync.fileSkipped(source);
+          myCompletedFiles.add(getFileKey(source, destination));
+          continue;
+        }
+        pendingFiles.put(source, destination);
+      }
+      if (!pendingFiles.isEmpty()) {
+        result.add(new ArtifactsCollection(artifactsCollection.getSourcePath(), artifactsCollection.getTargetPath(), pendingFiles));
+      }
+    }
+    return result;
+  }
+
+  private void fileUploaded(@NotNull final ChannelSftp channel,
+                            @NotNull final File source,
+                            @NotNull final String destination) throws SftpException {
+    if (mySync != null) {
+      mySync.fileUploaded(channel, source, destination);
+    }
+    myCompletedFiles.add(getFileKey(source, destination));
+  }
+
+  @NotNull
+  private static String getFileKey(@NotNull final File source, @NotNull final String destination) {
+    return source.getAbsolutePath() + "\n" + destination;
+  }
+
+  @NotNull
+  private ChannelSftp openChannel(@NotNull final Session session) throws JSchException {
+    final ChannelSftp channel = (ChannelSftp) session.openChannel("sftp");
+    channel.connect();
+    // number of write requests sent ahead of their status replies
+    channel.setBulkRequests(myMaxRequests);
+    return channel;
+  }
+
+  private void openChannels(@NotNull final Session session,
+                            @NotNull final List<ChannelSftp> channels,
+                            @NotNull final String baseDir,
+                            final int count) throws JSchException, SftpException {
+    while (channels.size() < count) {
+      final ChannelSftp channel = openChannel(session);
+      channels.add(channel);
+      channel.cd(baseDir);
+    }
+  }
+
+  @NotNull
+  private static String getDestinationPath(@NotNull final String destination) {
+    return "".equals(destination) ? "." : destination;
+  }
+
+  private void upload(@NotNull final ChannelSftp channel,
+                      @NotNull final String baseDir,
+                      @NotNull final List<ArtifactsCollection> artifacts) throws SftpException {
+    for (ArtifactsCollection artifactsCollection : artifacts) {
+      for (Map.Entry<File, String> fileStringEntry : artifactsCollection.getFilePathMap().entrySet()) {
+        checkIsInterrupted();
+        final File source = fileStringEntry.getKey();
+        final String destinationPath = getDestinationPath(fileStringEntry.getValue());
+        LOG.debug("Transferring [" + source.getAbsolutePath() + "] to [" + destinationPath + "] under [" + baseDir + "]");
+        if (myResume) {
+          uploadResumable(channel, source, getRemoteFile(destinationPath, source));
+        } else {
+          channel.put(source.getAbsolutePath(), destinationPath);
+        }
+        fileUploaded(channel, source, fileStringEntry.getValue());
+        LOG.debug("done transferring [" + source.getAbsolutePath() + "]");
+      }
+    }
+  }
+
+  private void uploadInParallel(@NotNull final List<ChannelSftp> channels,
+                                @NotNull final String baseDir,
+                                @NotNull final List<List<ArtifactsCollection>> shares) throws SftpException, JSchException {
+    final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int i = 0; i < shares.size(); i++) {
+      final ChannelSftp channel = channels.get(i);
+      final List<ArtifactsCollection> share = shares.get(i);
+      tasks.add(new Callable<Void>() {
+        public Void call() throws Exception {
+          upload(channel, baseDir, share);
+          return null;
+        }
+      });
+    }
+    myLogger.message("Uploading via " + tasks.size() + " SFTP channels");
+    runInParallel("SFTP upload", channels, tasks);
+  }
+
+  /**
+   * Uploads files not smaller than the stripe threshold, each split into byte ranges written concurrently
+   * through separate channels.
+   *
+   * @return artifacts that are left to upload
+   */
+  @NotNull
+  private List<ArtifactsCollection> uploadLargeFiles(@NotNull final Session session,
+                                                     @NotNull final List<ChannelSftp> channels,
+                                                     @NotNull final String baseDir,
+                                                     @NotNull final List<ArtifactsCollection> artifacts) throws SftpException, JSchException {
+    final List<ArtifactsCollection> rest = new ArrayList<ArtifactsCollection>();
+    for (ArtifactsCollection artifactsCollection : artifacts) {
+      final Map<File, String> smallFiles = new LinkedHashMap<File, String>();
+      for (Map.Entry<File, String> fileStringEntry : artifactsCollection.getFilePathMap().entrySet()) {
+        final File source = fileStringEntry.getKey();
+        if (source.length() < myStripeThreshold) {
+          smallFiles.put(source, fileStringEntry.getValue());
+          continue;
+        }
+        checkIsInterrupted();
+        openChannels(session, channels, baseDir, myStripes);
+        final String remoteFile = getRemoteFile(getDestinationPath(fileStringEntry.getValue()), source);
+        if (myResume) {
+          final String tempFile = remoteFile + TEMP_NAME_SUFFIX;
+          uploadStriped(channels.subList(0, myStripes), source, tempFile, getFileKey(source, fileStringEntry.getValue()));
+          rename(channels.get(0), tempFile, remoteFile);
+        } else {
+          uploadStriped(channels.subList(0, myStripes), source, remoteFile, null);
+        }
+        fileUploaded(channels.get(0), source, fileStringEntry.getValue());
+      }
+      if (!smallFiles.isEmpty()) {
+        rest.add(new ArtifactsCollection(artifactsCollection.getSourcePath(), artifactsCollection.getTargetPath(), smallFiles));
+      }
+    }
+    return rest;
+  }
+
+  @NotNull
+  private static String getRemoteFile(@NotNull final String destinationPath, @NotNull final File source) {
+    return destinationPath + (destinationPath.endsWith("/") ? "" : "/") + source.getName();
+  }
+
+  /**
+   * Uploads file under a temporary name and renames it when complete. Upload continues from the end of
+   * temporary file left by a failed attempt of this step, unless it is longer than the source or its tail differs.
+   * Temporary files left by other builds are resumed only when the tail check is enabled.
+   */
+  private void uploadResumable(@NotNull final ChannelSftp channel,
+                               @NotNull final File source,
+                               @NotNull final String remoteFile) throws SftpException {
+    final String tempFile = remoteFile + TEMP_NAME_SUFFIX;
+    final long offset = getResumeOffset(channel, source, tempFile);
+    if (offset > 0) {
+      myLogger.message("Resuming upload of [" + remoteFile + "] from byte " + offset);
+    }
+    if (offset < source.length()) {
+      myStartedFiles.add(getFileKey(source, tempFile));
+      channel.put(source.getAbsolutePath(), tempFile, null, offset > 0 ? ChannelSftp.RESUME : ChannelSftp.OVERWRITE);
+    }
+    rename(channel, tempFile, remoteFile);
+  }
+
+  private static void rename(@NotNull final ChannelSftp channel,
+                             @NotNull final String tempFile,
+                             @NotNull final String remoteFile) throws SftpException {
+    try {
+      channel.rename(tempFile, remoteFile);
+    } catch (SftpException e) {
+      // SFTP v3 servers do not overwrite existing files on rename
+      try {
+        channel.rm(remoteFile);
+      } catch (SftpException ignored) {
+        throw e;
+      }
+      channel.rename(tempFile, remoteFile);
+    }
+  }
+
+  private long getResumeOffset(@NotNull final ChannelSftp channel,
+                               @NotNull final File source,
+                               @NotNull final String tempFile) throws SftpException {
+    if (myResumeCheckSize <= 0 && !myStartedFiles.contains(getFileKey(source, tempFile))) {
+      // nothing tells whether a file of another build has the same content, it is overwritten
+      return 0;
+    }
+    final long size;
+    try {
+      size = channel.stat(tempFile).getSize();
+    } catch (SftpException e) {
+      if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+        return 0;
+      }
+      throw e;
+    }
+    if (size > source.length()) {
+      return 0;
+    }
+    if (size > 0 && myResumeCheckSize > 0 && !isSameTail(channel, source, tempFile, size)) {
+      myLogger.message("Partial upload [" + tempFile + "] does not match the source, uploading from the start");
+      return 0;
+    }
+    return size;
+  }
+
+  /**
+   * Compares last bytes of the partially uploaded file with the same region of the source.
+   * SFTP has no standard way to compute a checksum on the server, so the region is read back.
+   */
+  private boolean isSameTail(@NotNull final ChannelSftp channel,
+                             @NotNull final File source,
+                             @NotNull final String tempFile,
+                             final long size) throws SftpException {
+    final long start = Math.max(0, size - myResumeCheckSize);
+    final byte[] localBuffer = new byte[STRIPE_BUFFER_SIZE];
+    final byte[] remoteBuffer = new byte[STRIPE_BUFFER_SIZE];
+    DataInputStream remote = null;
+    RandomAccessFile local = null;
+    try {
+      remote = new DataInputStream(new BufferedInputStream(channel.get(tempFile, null, start)));
+      local = new RandomAccessFile(source, "r");
+      local.seek(start);
+      long remaining = size - start;
+      while (remaining > 0) {
+        checkIsInterrupted();
+        final int length = (int) Math.min(localBuffer.length, remaining);
+        local.readFully(localBuffer, 0, length);
+        remote.readFully(remoteBuffer, 0, length);
+        for (int i = 0; i < length; i++) {
+          if (localBuffer[i] != remoteBuffer[i]) {
+            return false;
+          }
+        }
+        remaining -= length;
+      }
+      return true;
+    } catch (IOException e) {
+      throw new SftpException(ChannelSftp.SSH_FX_FAILURE, "Failed to compare [" + tempFile + "] with [" + source.getAbsolutePath() + "]: " + e.getMessage(), e);
+    } finally {
+      FileUtil.close(remote);
+      FileUtil.close(local);
+    }
+  }
+
+  /**
+   * @param resumeKey key of the file to remember its completed stripes under, so that a retry
+   *                  uploads only the rest of them, null to upload all stripes on every attempt
+   */
+  private void uploadStriped(@NotNull final List<ChannelSftp> channels,
+                             @NotNull final File source,
+                             @NotNull final String remoteFile,
+                             @Nullable final String resumeKey) throws SftpException, JSchException {
+    final long length = source.length();
+    final int stripes = (int) Math.min(channels.size(), length);
+    final long stripeSize = (length + stripes - 1) / stripes;
+
+    // stripes of a failed attempt are only kept while the file they were written to exists
+    final long remoteSize = resumeKey != null ? getRemoteSize(channels.get(0), remoteFile) : -1;
+    int completedStripes = 0;
+    for (int i = 0; i < stripes && remoteSize >= 0; i++) {
+      if (myCompletedStripes.contains(resumeKey + "\n" + i)) {
+        completedStripes++;
+      }
+    }
+    if (completedStripes > 0) {
+      myLogger.message("Resuming upload of [" + remoteFile + "], " + completedStripes + " of " + stripes + " stripes are already uploaded");
+    } else {
+      myLogger.message("Uploading [" + source.getName() + "] (" + length + " bytes) in " + stripes + " stripes");
+    }
+
+    // every stream truncates the remote file on open, so all of them are opened before the first write
+    final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int i = 0; i < stripes; i++) {
+      final String stripeKey = resumeKey + "\n" + i;
+      if (completedStripes > 0 && myCompletedStripes.contains(stripeKey)) {
+        continue;
+      }
+      final long start = i * stripeSize;
+      final long end = Math.min(length, start + stripeSize);
+      final ChannelSftp channel = channels.get(tasks.size());
+      // append mode does not truncate, its offset is relative to the current end of the file
+      final OutputStream out = completedStripes > 0
+          ? channel.put(remoteFile, null, ChannelSftp.APPEND, start - remoteSize)
+          : channel.put(remoteFile, null, ChannelSftp.OVERWRITE, start);
+      tasks.add(new Callable<Void>() {
+        public Void call() throws Exception {
+          try {
+            copyRange(source, start, end, out);
+          } finally {
+            out.close();
+          }
+          if (resumeKey != null) {
+            myCompletedStripes.add(stripeKey);
+          }
+          return null;
+        }
+      });
+    }
+    if (!tasks.isEmpty()) {
+      runInParallel("SFTP stripe", channels.subList(0, tasks.size()), tasks);
+    }
+
+    final long uploadedSize = channels.get(0).stat(remoteFile).getSize();
+    if (uploadedSize != length) {
+      throw new SftpException(ChannelSftp.SSH_FX_FAILURE,
+          "Size of uploaded file [" + remoteFile + "] is " + uploadedSize + " bytes, expected " + length + " bytes");
+    }
+  }
+
+  /**
+   * @return size of remote file, -1 if it does not exist
+   */
+  private static long getRemoteSize(@NotNull final ChannelSftp channel,
+                                    @NotNull final String remoteFile) throws SftpException {
+    try {
+      return channel.stat(remoteFile).getSize();
+    } catch (SftpException e) {
+      if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+        return -1;
+      }
+      throw e;
+    }
+  }
+
+  private void copyRange(@NotNull final File source,
+                         final long start,
+                         final long end,
+                         @NotNull final OutputStream out) throws IOException {
+    final RandomAccessFile file = new RandomAccessFile(source, "r");
+    try {
+      file.seek(start);
+      final byte[] buffer = new byte[STRIPE_BUFFER_SIZE];
+      long remaining = end - start;
+      while (remaining > 0) {
+        checkIsInterrupted();
+        final int read = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (read < 0) {
+          throw new EOFException("Unexpected end of file [" + source.getAbsolutePath() + "]");
+        }
+        out.write(buffer, 0, read);
+        remaining -= read;
+      }
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Runs every task on its own thread, task {@code i} uses channel {@code i}.
+   * Waits for all tasks to complete, the first failure or build interruption, whichever comes first.
+   */
+  private void runInParallel(@NotNull final String threadName,
+                             @NotNull final List<ChannelSftp> channels,
+                             @NotNull final List<Callable<Void>> tasks) throws SftpException, JSchException {
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < tasks.size(); i++) {
+      final Callable<Void> task = tasks.get(i);
+      final Thread thread = new Thread(new Runnable() {
+        public void run() {
+          try {
+            task.call();
+          } catch (UploadInterruptedException e) {
+            // main thread reports interruption
+          } catch (Exception e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      }, threadName + " " + (i + 1) + "/" + tasks.size());
+      thread.setDaemon(true);
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+
+    new WaitFor(Long.MAX_VALUE, INTERRUPT_POLL_INTERVAL_MS) {
+      @Override
+      protected boolean condition() {
+        return DeployerAgentUtils.allTerminated(threads) || isInterrupted() || failure.get() != null;
+      }
+    };
+
+    if (!DeployerAgentUtils.allTerminated(threads)) {
+      // unblock threads stuck in channel I/O
+      for (ChannelSftp channel : channels) {
+        channel.disconnect();
+      }
+    }
+    checkIsInterrupted();
+    final Exception e = failure.get();
+    if (e instanceof SftpException) {
+      throw (SftpException) e;
+    } else if (e instanceof JSchException) {
+      throw (JSchException) e;
+    } else if (e != null) {
+      throw new JSchException(e.getMessage(), e);
+    }
+  }
+
   private void createRemotePath(@NotNull final ChannelSftp channel,
-                                @NotNull final String destination) throws SftpException {
+                                @NotNull final String destination,
+                                @NotNull final Set<String> existingDirs) throws SftpException {
+    if (existingDirs.contains(destination)) {
+      return;
+    }
     final int endIndex = destination.lastIndexOf('/');
     if (endIndex > 0) {
-      createRemotePath(channel, destination.substring(0, endIndex));
+      createRemotePath(channel, destination.substring(0, endIndex), existingDirs);
     }
     try {
       channel.stat(destination);
@@ -120,7 +680,7 @@ public class SftpBuildProcessAdapter extends SyncBuildProcessAdapter {
         channel.mkdir(destination);
       }
     }
-
+    existingDirs.add(destination);
   }
 
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.deployer.agent.ssh.tar;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip output stream that compresses blocks of data on several threads.
+ * Every block is written as a separate gzip member, a concatenation of members is a valid gzip stream
+ * that is decompressed by 'gzip -d' or 'tar -z' as a whole.
+ */
+class ParallelGzipOutputStream extends OutputStream {
+  static final int BLOCK_SIZE = 1024 * 1024;
+
+  private final OutputStream myOut;
+  private final int myLevel;
+  private final ExecutorService myExecutor;
+  private final int myMaxPendingBlocks;
+  private final LinkedList<Future<byte[]>> myPendingBlocks = new LinkedList<Future<byte[]>>();
+  private byte[] myBlock = new byte[BLOCK_SIZE];
+  private int myBlockLength = 0;
+  private boolean myClosed = false;
+
+  /**
+   * @param out     stream to write compressed data to
+   * @param level   compression level, 1-9
+   * @param threads number of compressing threads
+   */
+  ParallelGzipOutputStream(@NotNull final OutputStream out, final int level, final int threads) {
+    myOut = out;
+    myLevel = level;
+    myExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(@NotNull final Runnable r) {
+        final Thread thread = new Thread(r, "Tar stream compression");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    // keep all threads busy while the oldest block is written out
+    myMaxPendingBlocks = 2 * threads;
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(@NotNull final byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      final int count = Math.min(len, BLOCK_SIZE - myBlockLength);
+      System.arraycopy(b, off, myBlock, myBlockLength, count);
+      myBlockLength += count;
+      off += count;
+      len -= count;
+      if (myBlockLength == BLOCK_SIZE) {
+        submitBlock();
+      }
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    submitBlock();
+    while (!myPendingBlocks.isEmpty()) {
+      writePendingBlock();
+    }
+    myOut.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (myClosed) {
+      return;
+    }
+    myClosed = true;
+    try {
+      flush();
+    } finally {
+      myExecutor.shutdownNow();
+      myOut.close();
+    }
+  }
+
+  private void submitBlock() throws IOException {
+    if (myBlockLength == 0) {
+      return;
+    }
+    final byte[] block = myBlock;
+    final int length = myBlockLength;
+    myPendingBlocks.add(myExecutor.submit(new Callable<byte[]>() {
+      public byte[] call() throws IOException {
+        return compress(block, length, myLevel);
+      }
+    }));
+    myBlock = new byte[BLOCK_SIZE];
+    myBlockLength = 0;
+    while (myPendingBlocks.size() > myMaxPendingBlocks) {
+      writePendingBlock();
+    }
+  }
+
+  private void writePendingBlock() throws IOException {
+    try {
+      myOut.write(myPendingBlocks.removeFirst().get());
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while compressing tar stream");
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      throw cause instanceof IOException ? (IOException) cause : new IOException("Failed to compress tar stream", cause);
+    }
+  }
+
+  @NotNull
+  private static byte[] compress(@NotNull final byte[] block, final int length, final int level) throws IOException {
+    final ByteArrayOutputStream result = new ByteArrayOutputStream(length / 2);
+    final GZIPOutputStream gzip = new GZIPOutputStream(result) {
+      {
+        def.setLevel(level);
+      }
+    };
+    gzip.write(block, 0, length);
+    gzip.close();
+    return result.toByteArray();
+  }
+}
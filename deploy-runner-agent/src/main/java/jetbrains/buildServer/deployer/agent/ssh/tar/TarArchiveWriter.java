@@ -0,0 +1,141 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.deployer.agent.ssh.tar;
+
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writes files to a stream in GNU tar format, without any intermediate archive on disk.
+ * Names longer than 100 bytes are written as GNU long name entries, sizes above 8 GB use base-256 encoding.
+ */
+class TarArchiveWriter {
+  private static final int BLOCK_SIZE = 512;
+  private static final int NAME_LENGTH = 100;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final long MAX_OCTAL_SIZE = 077777777777L;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final OutputStream myOut;
+  private final byte[] myBuffer = new byte[BUFFER_SIZE];
+
+  TarArchiveWriter(@NotNull final OutputStream out) {
+    myOut = out;
+  }
+
+  /**
+   * Write a file entry with the content of given file
+   *
+   * @param name path of the file inside archive
+   * @param file source file
+   */
+  void putFile(@NotNull final String name, @NotNull final File file) throws IOException {
+    final long length = file.length();
+    final byte[] nameBytes = name.getBytes(UTF_8);
+    if (nameBytes.length > NAME_LENGTH) {
+      final byte[] longName = new byte[nameBytes.length + 1];
+      System.arraycopy(nameBytes, 0, longName, 0, nameBytes.length);
+      writeHeader("././@LongLink".getBytes(UTF_8), longName.length, 0, 'L');
+      myOut.write(longName);
+      writePadding(longName.length);
+    }
+    writeHeader(nameBytes, length, file.lastModified() / 1000, '0');
+
+    final InputStream in = new FileInputStream(file);
+    try {
+      long remaining = length;
+      while (remaining > 0) {
+        final int read = in.read(myBuffer, 0, (int) Math.min(myBuffer.length, remaining));
+        if (read < 0) {
+          throw new IOException("File [" + file.getAbsolutePath() + "] was truncated during upload");
+        }
+        myOut.write(myBuffer, 0, read);
+        remaining -= read;
+      }
+    } finally {
+      FileUtil.close(in);
+    }
+    writePadding(length);
+  }
+
+  /**
+   * Write end of archive marker. Does not close the underlying stream
+   */
+  void finish() throws IOException {
+    myOut.write(new byte[2 * BLOCK_SIZE]);
+    myOut.flush();
+  }
+
+  private void writeHeader(@NotNull final byte[] name, final long size, final long mtime, final char type) throws IOException {
+    final byte[] header = new byte[BLOCK_SIZE];
+    System.arraycopy(name, 0, header, 0, Math.min(name.length, NAME_LENGTH));
+    writeOctal(header, 100, 8, 0755);
+    // uid and gid are left zero, the remote side extracts with --no-same-owner
+    writeOctal(header, 108, 8, 0);
+    writeOctal(header, 116, 8, 0);
+    if (size > MAX_OCTAL_SIZE) {
+      // GNU base-256 encoding
+      header[124] = (byte) 0x80;
+      for (int i = 0; i < 8; i++) {
+        header[135 - i] = (byte) (size >>> (8 * i));
+      }
+    } else {
+      writeOctal(header, 124, 12, size);
+    }
+    writeOctal(header, 136, 12, mtime);
+    header[156] = (byte) type;
+    System.arraycopy("ustar  ".getBytes(UTF_8), 0, header, 257, 7);
+
+    // checksum is computed with checksum field filled with spaces
+    for (int i = 148; i < 156; i++) {
+      header[i] = ' ';
+    }
+    long checksum = 0;
+    for (byte b : header) {
+      checksum += b & 0xFF;
+    }
+    writeOctal(header, 148, 7, checksum);
+    myOut.write(header);
+  }
+
+  private void writePadding(final long length) throws IOException {
+    final int remainder = (int) (length % BLOCK_SIZE);
+    if (remainder > 0) {
+      myOut.write(new byte[BLOCK_SIZE - remainder]);
+    }
+  }
+
+  /**
+   * Write zero-padded octal number followed by NUL into the field
+   */
+  private static void writeOctal(@NotNull final byte[] header, final int offset, final int length, final long value) {
+    final String octal = Long.toOctalString(value);
+    final int digits = length - 1;
+    for (int i = 0; i < digits; i++) {
+      final int index = octal.length() - digits + i;
+      header[offset + i] = (byte) (index >= 0 ? octal.charAt(index) : '0');
+    }
+    header[offset + digits] = 0;
+  }
+}
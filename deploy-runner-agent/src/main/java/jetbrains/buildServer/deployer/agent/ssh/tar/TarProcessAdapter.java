@@ -0,0 +1,215 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.deployer.agent.ssh.tar;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import jetbrains.buildServer.agent.BuildFinishedStatus;
+import jetbrains.buildServer.agent.BuildRunnerContext;
+import jetbrains.buildServer.agent.impl.artifacts.ArtifactsCollection;
+import jetbrains.buildServer.deployer.agent.SyncBuildProcessAdapter;
+import jetbrains.buildServer.deployer.agent.UploadInterruptedException;
+import jetbrains.buildServer.deployer.agent.ssh.SSHSessionProvider;
+import jetbrains.buildServer.deployer.common.SSHRunnerConstants;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static jetbrains.buildServer.deployer.agent.DeployerAgentUtils.logBuildProblem;
+
+/**
+ * Uploads artifacts as a tar stream, generated on the fly and extracted by remote 'tar' command.
+ * Files do not need a round trip each, which pays off for large numbers of small files.
+ */
+public class TarProcessAdapter extends SyncBuildProcessAdapter {
+
+  private static final Logger LOG = Logger.getInstance(TarProcessAdapter.class.getName());
+  private static final long EXIT_POLL_INTERVAL_MS = 100;
+
+  private final List<ArtifactsCollection> myArtifacts;
+  private final SSHSessionProvider mySessionProvider;
+  private final int myCompressionLevel;
+  private final int myCompressionThreads;
+
+  public TarProcessAdapter(@NotNull final BuildRunnerContext context,
+                           @NotNull final List<ArtifactsCollection> artifactsCollections,
+                           @NotNull final SSHSessionProvider sessionProvider) {
+    super(context.getBuild().getBuildLogger());
+    myArtifacts = artifactsCollections;
+    mySessionProvider = sessionProvider;
+    final Map<String, String> sharedConfigParameters = context.getBuild().getSharedConfigParameters();
+    myCompressionLevel = getIntParameter(sharedConfigParameters, SSHRunnerConstants.PARAM_TAR_COMPRESSION_LEVEL, 0, 0, 9);
+    myCompressionThreads = getIntParameter(sharedConfigParameters, SSHRunnerConstants.PARAM_TAR_COMPRESSION_THREADS,
+                                           Runtime.getRuntime().availableProcessors(), 1, Integer.MAX_VALUE);
+  }
+
+  private static int getIntParameter(@NotNull final Map<String, String> parameters,
+                                     @NotNull final String name,
+                                     final int defaultValue,
+                                     final int minValue,
+                                     final int maxValue) {
+    final String value = parameters.get(name);
+    if (StringUtil.isEmptyOrSpaces(value)) {
+      return defaultValue;
+    }
+    try {
+      final int result = Integer.parseInt(value.trim());
+      if (result >= minValue && result <= maxValue) {
+        return result;
+      }
+    } catch (NumberFormatException ignored) {
+    }
+    LOG.warn("Incorrect value '" + value + "' of '" + name + "' parameter, using default value " + defaultValue);
+    return defaultValue;
+  }
+
+  @Override
+  public BuildFinishedStatus runProcess() {
+    Session session = null;
+    try {
+      final String remotePath = mySessionProvider.getRemotePath();
+      session = mySessionProvider.getSession();
+
+      if (isInterrupted()) return BuildFinishedStatus.FINISHED_FAILED;
+
+      myLogger.message("Starting upload via tar over SSH to " + mySessionProvider.getSessionString() +
+                       (myCompressionLevel > 0 ? " with compression level " + myCompressionLevel : ""));
+
+      final List<ArtifactsCollection> relativeDestinations = new LinkedList<ArtifactsCollection>();
+      final List<ArtifactsCollection> absDestinations = new LinkedList<ArtifactsCollection>();
+      final boolean isRemoteBaseAbsolute = remotePath.startsWith("/");
+      for (ArtifactsCollection artifactsCollection : myArtifacts) {
+        if (artifactsCollection.getTargetPath().startsWith("/")) {
+          absDestinations.add(artifactsCollection);
+        } else if (isRemoteBaseAbsolute) {
+          absDestinations.add(artifactsCollection);
+        } else {
+          relativeDestinations.add(artifactsCollection);
+        }
+      }
+
+      upload(session, ".", remotePath, relativeDestinations);
+      upload(session, "/", remotePath, absDestinations);
+
+      return BuildFinishedStatus.FINISHED_SUCCESS;
+    } catch (UploadInterruptedException e) {
+      myLogger.warning("Tar upload interrupted.");
+      return BuildFinishedStatus.FINISHED_FAILED;
+    } catch (JSchException e) {
+      logBuildProblem(myLogger, e.getMessage());
+      LOG.warnAndDebugDetails("Error executing tar command", e);
+      return BuildFinishedStatus.FINISHED_FAILED;
+    } catch (IOException e) {
+      logBuildProblem(myLogger, e.getMessage());
+      LOG.warnAndDebugDetails("Error executing tar command", e);
+      return BuildFinishedStatus.FINISHED_FAILED;
+    } finally {
+      if (session != null) {
+        session.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Stream all files of given collections into remote 'tar -x'
+   *
+   * @param session      ssh session
+   * @param extractDir   directory where remote tar extracts the archive, "." or "/"
+   * @param remotePath   remote path configured for the deployer
+   * @param artifacts    collections to upload
+   */
+  private void upload(@NotNull final Session session,
+                      @NotNull final String extractDir,
+                      @NotNull final String remotePath,
+                      @NotNull final List<ArtifactsCollection> artifacts) throws IOException, JSchException {
+    if (artifacts.isEmpty()) {
+      return;
+    }
+
+    final ChannelExec execChannel = (ChannelExec) session.openChannel("exec");
+    // archive entries carry no owner, files belong to the ssh user even when remote tar runs as root
+    execChannel.setCommand("tar -x --no-same-owner " + (myCompressionLevel > 0 ? "-z " : "") + "-f - -C " + extractDir);
+    final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    execChannel.setErrStream(errors);
+    OutputStream out = execChannel.getOutputStream();
+    try {
+      execChannel.connect();
+
+      if (myCompressionLevel > 0) {
+        out = new ParallelGzipOutputStream(out, myCompressionLevel, myCompressionThreads);
+      }
+      final TarArchiveWriter archive = new TarArchiveWriter(out);
+      for (ArtifactsCollection artifactsCollection : artifacts) {
+        final boolean absoluteTarget = artifactsCollection.getTargetPath().startsWith("/");
+        for (Map.Entry<File, String> fileTargetEntry : artifactsCollection.getFilePathMap().entrySet()) {
+          checkIsInterrupted();
+          final File source = fileTargetEntry.getKey();
+          final String destination = absoluteTarget ? fileTargetEntry.getValue() : remotePath + "/" + fileTargetEntry.getValue();
+          final String name = getEntryName(destination, source.getName());
+          LOG.debug("Transferring [" + source.getAbsolutePath() + "] to [" + name + "] under [" + extractDir + "]");
+          archive.putFile(name, source);
+        }
+      }
+      archive.finish();
+      // remote tar finishes when it reads end of stream
+      out.close();
+
+      while (!execChannel.isClosed()) {
+        checkIsInterrupted();
+        try {
+          Thread.sleep(EXIT_POLL_INTERVAL_MS);
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted while waiting for remote tar to finish", e);
+        }
+      }
+      final int exitStatus = execChannel.getExitStatus();
+      if (exitStatus != 0) {
+        throw new IOException("Remote tar failed with exit code [" + exitStatus + "]: " + errors.toString("UTF-8").trim());
+      }
+      for (ArtifactsCollection artifactsCollection : artifacts) {
+        myLogger.message("Uploaded [" + artifactsCollection.getFilePathMap().size() + "] files for [" + artifactsCollection.getSourcePath() + "] pattern");
+      }
+    } finally {
+      FileUtil.close(out);
+      execChannel.disconnect();
+    }
+  }
+
+  /**
+   * @return path of the file inside archive, relative to the extraction directory
+   */
+  @NotNull
+  static String getEntryName(@NotNull final String destinationDir, @NotNull final String fileName) {
+    final StringBuilder sb = new StringBuilder();
+    for (String name : destinationDir.replace('\\', '/').split("/")) {
+      if (!StringUtil.isEmpty(name) && !".".equals(name)) {
+        sb.append(name).append('/');
+      }
+    }
+    return sb.append(fileName).toString();
+  }
+}
@@ -17,16 +17,28 @@
 package jetbrains.buildServer.deployer.agent.ftp;
 
 import jetbrains.buildServer.NetworkUtil;
+import jetbrains.buildServer.RunBuildException;
 import jetbrains.buildServer.agent.*;
 import jetbrains.buildServer.agent.impl.artifacts.ArtifactsCollection;
 import jetbrains.buildServer.deployer.agent.BaseDeployerTest;
 import jetbrains.buildServer.deployer.agent.util.DeployTestUtils;
 import jetbrains.buildServer.deployer.common.FTPRunnerConstants;
+import jetbrains.buildServer.messages.BuildMessage1;
 import jetbrains.buildServer.util.WaitFor;
+import org.apache.commons.net.util.TrustManagerUtils;
 import org.apache.ftpserver.DataConnectionConfigurationFactory;
 import org.apache.ftpserver.FtpServer;
 import org.apache.ftpserver.FtpServerFactory;
 import org.apache.ftpserver.ftplet.Authority;
+import org.apache.ftpserver.ftplet.DataConnection;
+import org.apache.ftpserver.ftplet.DefaultFtpReply;
+import org.apache.ftpserver.ftplet.DefaultFtplet;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpReply;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.ftplet.FtpSession;
+import org.apache.ftpserver.ftplet.Ftplet;
+import org.apache.ftpserver.ftplet.FtpletResult;
 import org.apache.ftpserver.ftplet.UserManager;
 import org.apache.ftpserver.listener.ListenerFactory;
 import org.apache.ftpserver.ssl.SslConfigurationFactory;
@@ -36,13 +48,26 @@ import org.apache.ftpserver.usermanager.impl.BaseUser;
 import org.apache.ftpserver.usermanager.impl.WritePermission;
 import org.aspectj.util.FileUtil;
 import org.jmock.Expectations;
+import org.jetbrains.annotations.NotNull;
 import org.jmock.Mockery;
+import org.testng.SkipException;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import javax.net.ssl.SSLSocket;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.testng.Assert.*;
@@ -64,6 +89,8 @@ public class FtpBuildProcessAdapterTest extends BaseDeployerTest {
   private final Map<String, String> myRunnerParameters = new HashMap<String, String>();
   private final Map<String, String> mySharedConfigParameters = new HashMap<String, String>();
   private List<String> myResultingLog;
+  // intercepts commands of the test server, null to handle them normally
+  private volatile Ftplet myFtplet;
 
   @BeforeMethod
   @Override
@@ -71,6 +98,9 @@ public class FtpBuildProcessAdapterTest extends BaseDeployerTest {
     super.setUp();
 
     myResultingLog = new LinkedList<String>();
+    myRunnerParameters.clear();
+    mySharedConfigParameters.clear();
+    myFtplet = null;
 
     myRunnerParameters.put(FTPRunnerConstants.PARAM_FTP_MODE, "PASSIVE");
     myArtifactsCollections = new ArrayList<ArtifactsCollection>();
@@ -90,6 +120,13 @@ public class FtpBuildProcessAdapterTest extends BaseDeployerTest {
     ssl.setKeystorePassword("password");
     factory.setSslConfiguration(ssl.createSslConfiguration());
     serverFactory.addListener("default", factory.createListener());
+    serverFactory.setFtplets(Collections.<String, Ftplet>singletonMap("test", new DefaultFtplet() {
+      @Override
+      public FtpletResult beforeCommand(FtpSession session, FtpRequest request) throws FtpException, IOException {
+        final Ftplet ftplet = myFtplet;
+        return ftplet != null ? ftplet.beforeCommand(session, request) : FtpletResult.DEFAULT;
+      }
+    }));
 
     myServer = serverFactory.createServer();
 
@@ -126,6 +163,11 @@ public class FtpBuildProcessAdapterTest extends BaseDeployerTest {
       public void message(String message) {
         myResultingLog.add(message);
       }
+
+      @Override
+      public void logMessage(BuildMessage1 message) {
+        myResultingLog.add(String.valueOf(message.getValue()));
+      }
     };
     final File workingDir = createTempDir();
 
@@ -181,6 +223,102 @@ public class FtpBuildProcessAdapterTest extends BaseDeployerTest {
     assertTrue(myResultingLog.contains("< and continued >"));
   }
 
+  @Test
+  public void testParallelTransfer() throws Exception {
+    mySharedConfigParameters.put(FTPRunnerConstants.PARAM_FTP_PARALLEL_CONNECTIONS, "3");
+    myArtifactsCollections.add(DeployTestUtils.buildArtifactsCollection(createTempFilesFactory(),
+        "dest1", "dest2", "dest3", "dest1/sub1", "dest2/sub2", "dest3/sub3", "dest4"));
+    myArtifactsCollections.add(DeployTestUtils.buildArtifactsCollection(createTempFilesFactory(), "", "dest5"));
+    final BuildProcess process = getProcess("127.0.0.1:" + testPort + "/parallel");
+    DeployTestUtils.runProcess(process, 5000);
+    DeployTestUtils.assertCollectionsTransferred(new File(myRemoteDir, "parallel"), myArtifactsCollections);
+  }
+
+  @Test
+  public void testIncrementalTransfer() throws Exception {
+    mySharedConfigParameters.put(FTPRunnerConstants.PARAM_FTP_INCREMENTAL, "true");
+    myArtifactsCollections.add(DeployTestUtils.buildArtifactsCollection(createTempFilesFactory(), "dest1", "dest2", "dest2/sub"));
+    DeployTestUtils.runProcess(getProcess("127.0.0.1:" + testPort), 5000);
+    DeployTestUtils.assertCollectionsTransferred(myRemoteDir, myArtifactsCollections);
+    assertTrue(logContains("Uploaded [3] files"));
+    assertTrue(logContains("skipped [0] unchanged files"));
+
+    myResultingLog.clear();
+    DeployTestUtils.runProcess(getProcess("127.0.0.1:" + testPort), 5000);
+    assertTrue(logContains("Uploaded [0] files"));
+    assertTrue(logContains("skipped [3] unchanged files"));
+  }
+
+  @Test
+  public void testIncrementalTransferOfTextFiles() throws Exception {
+    mySharedConfigParameters.put(FTPRunnerConstants.PARAM_FTP_INCREMENTAL, "true");
+    myRunnerParameters.put(FTPRunnerConstants.PARAM_TRANSFER_MODE, FTPRunnerConstants.TRANSFER_MODE_ASCII);
+    final File source = new File(createTempDir(), "windows.txt");
+    DeployTestUtils.writeFile(source, "first line\r\nsecond line\r\n".getBytes("US-ASCII"));
+    myArtifactsCollections.add(new ArtifactsCollection("windows.txt", "", Collections.singletonMap(source, "")));
+    DeployTestUtils.runProcess(getProcess("127.0.0.1:" + testPort), 5000);
+    // server stores text with its own line separators
+    assertTrue(new File(myRemoteDir, "windows.txt").length() < source.length());
+
+    myResultingLog.clear();
+    DeployTestUtils.runProcess(getProcess("127.0.0.1:" + testPort), 5000);
+    assertTrue(logContains("Uploaded [0] files"));
+    assertTrue(logContains("skipped [1] unchanged files"));
+  }
+
+  @Test
+  public void testZeroCopyTransfer() throws Exception {
+    mySharedConfigParameters.put(FTPRunnerConstants.PARAM_FTP_ZERO_COPY, "true");
+    myRunnerParameters.put(FTPRunnerConstants.PARAM_TRANSFER_MODE, FTPRunnerConstants.TRANSFER_MODE_BINARY);
+    myArtifactsCollections.add(DeployTestUtils.buildArtifactsCollection(createTempFilesFactory(), "dest1", "dest2", "dest2/sub"));
+    final BuildProcess process = getProcess("127.0.0.1:" + testPort);
+    DeployTestUtils.runProcess(process, 5000);
+    DeployTestUtils.assertCollectionsTransferred(myRemoteDir, myArtifactsCollections);
+  }
+
+  @Test
+  public void testAtomicTransfer() throws Exception {
+    mySharedConfigParameters.put(FTPRunnerConstants.PARAM_FTP_ATOMIC_UPLOAD, FTPRunnerConstants.ATOMIC_UPLOAD_DEFERRED);
+    myArtifactsCollections.add(DeployTestUtils.buildArtifactsCollection(createTempFilesFactory(), "dest1", "dest2", "dest2/sub"));
+    final BuildProcess process = getProcess("127.0.0.1:" + testPort);
+    DeployTestUtils.runProcess(process, 5000);
+    DeployTestUtils.assertCollectionsTransferred(myRemoteDir, myArtifactsCollections);
+    assertFalse("Temporary files left after upload", containsTemporaryFiles(myRemoteDir));
+  }
+
+  private static boolean containsTemporaryFiles(File dir) {
+    final File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().endsWith(".teamcity-upload") || file.isDirectory() && containsTemporaryFiles(file)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void testProtocolLogSummary() throws Exception {
+    myArtifactsCollections.add(DeployTestUtils.buildArtifactsCollection(createTempFilesFactory(), "dest1", "dest2"));
+    final BuildProcess process = getProcess("127.0.0.1:" + testPort);
+    DeployTestUtils.runProcess(process, 5000);
+    DeployTestUtils.assertCollectionsTransferred(myRemoteDir, myArtifactsCollections);
+    assertTrue(logContains("FTP commands sent: "));
+    assertFalse(logContains("> STOR"));
+  }
+
+  @Test
+  public void testProtocolLogFullTrace() throws Exception {
+    mySharedConfigParameters.put(FTPRunnerConstants.PARAM_FTP_PROTOCOL_LOG, FTPRunnerConstants.PROTOCOL_LOG_FULL);
+    myArtifactsCollections.add(DeployTestUtils.buildArtifactsCollection(createTempFilesFactory(), "dest1", "dest2"));
+    final BuildProcess process = getProcess("127.0.0.1:" + testPort);
+    DeployTestUtils.runProcess(process, 5000);
+    DeployTestUtils.assertCollectionsTransferred(myRemoteDir, myArtifactsCollections);
+    assertTrue(logContains("> STOR"));
+    assertFalse(logContains("FTP commands sent: "));
+  }
+
   @Test
   public void testTransferInActiveMode() throws Exception {
     myRunnerParameters.put(FTPRunnerConstants.PARAM_FTP_MODE, "ACTIVE");
@@ -270,6 +408,267 @@ public class FtpBuildProcessAdapterTest extends BaseDeployerTest {
     assertEquals(files[0].length(), sourceXml.length());
   }
 
+  @Test
+  public void testReconnectAfterDroppedControlConnection() throws Exception {
+    myArtifactsCollections.add(DeployTestUtils.buildArtifactsCollection(createTempFilesFactory(), "dest1", "dest2", "dest3", "dest4"));
+
+    // the connection is dropped once, after two files were stored
+    final List<String> storedFiles = Collections.synchronizedList(new ArrayList<String>());
+    final AtomicBoolean dropped = new AtomicBoolean();
+    myFtplet = new DefaultFtplet() {
+      @Override
+      public FtpletResult beforeCommand(FtpSession session, FtpRequest request) {
+        if ("STOR".equals(request.getCommand())) {
+          storedFiles.add(request.getArgument());
+        } else if ("PASV".equals(request.getCommand()) && storedFiles.size() == 2 && dropped.compareAndSet(false, true)) {
+          return FtpletResult.DISCONNECT;
+        }
+        return FtpletResult.DEFAULT;
+      }
+    };
+
+    DeployTestUtils.runProcess(getProcess("127.0.0.1:" + testPort), 10000);
+    DeployTestUtils.assertCollectionsTransferred(myRemoteDir, myArtifactsCollections);
+    assertTrue(dropped.get());
+    assertTrue(logContains("Reconnecting in"));
+    // files uploaded before the drop are not stored again
+    assertEquals(storedFiles.size(), 4);
+    assertEquals(new HashSet<String>(storedFiles).size(), 4);
+  }
+
+  @Test
+  public void testCompressedTransferOfAllFiles() throws Exception {
+    doTestCompressedTransfer(FTPRunnerConstants.COMPRESSION_ALL);
+  }
+
+  @Test
+  public void testCompressedTransferOfTextFiles() throws Exception {
+    doTestCompressedTransfer(FTPRunnerConstants.COMPRESSION_TEXT);
+  }
+
+  private void doTestCompressedTransfer(String compression) throws Exception {
+    mySharedConfigParameters.put(FTPRunnerConstants.PARAM_FTP_COMPRESSION, compression);
+    mySharedConfigParameters.put(FTPRunnerConstants.PARAM_FTP_PROTOCOL_LOG, FTPRunnerConstants.PROTOCOL_LOG_FULL);
+    myRunnerParameters.put(FTPRunnerConstants.PARAM_TRANSFER_MODE, FTPRunnerConstants.TRANSFER_MODE_BINARY);
+    final File sourceDir = createTempDir();
+    final StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      text.append("line ").append(i).append(" of compressible text\r\n");
+    }
+    final File textFile = new File(sourceDir, "data.txt");
+    final File binaryFile = new File(sourceDir, "data.bin");
+    DeployTestUtils.writeFile(textFile, text.toString().getBytes("UTF-8"));
+    DeployTestUtils.writeFile(binaryFile, randomBytes(100 * 1024));
+    final Map<File, String> map = new HashMap<File, String>();
+    map.put(textFile, "compressed");
+    map.put(binaryFile, "compressed");
+    myArtifactsCollections.add(new ArtifactsCollection("", "", map));
+
+    DeployTestUtils.runProcess(getProcess("127.0.0.1:" + testPort), 5000);
+    assertTrue(logContains("> MODE Z"));
+    assertFalse(logContains("does not support compressed transfers"));
+    assertTrue(Arrays.equals(readFile(new File(myRemoteDir, "compressed/data.txt")), readFile(textFile)), "wrong content of text file");
+    assertTrue(Arrays.equals(readFile(new File(myRemoteDir, "compressed/data.bin")), readFile(binaryFile)), "wrong content of binary file");
+  }
+
+  @Test
+  public void testRetryDoesNotResumeExistingRemoteFile() throws Exception {
+    final File sourceDir = createTempDir();
+    final File sameSize = new File(sourceDir, "same.bin");
+    final File larger = new File(sourceDir, "larger.bin");
+    DeployTestUtils.writeFile(sameSize, randomBytes(1000));
+    DeployTestUtils.writeFile(larger, randomBytes(1000));
+    // copies left by an earlier deploy
+    DeployTestUtils.writeFile(new File(myRemoteDir, sameSize.getName()), randomBytes(1000));
+    DeployTestUtils.writeFile(new File(myRemoteDir, larger.getName()), randomBytes(500));
+
+    final Map<File, String> map = new HashMap<File, String>();
+    map.put(sameSize, "");
+    map.put(larger, "");
+    myArtifactsCollections.add(new ArtifactsCollection("", "", map));
+
+    // the first attempt of every file loses the connection before STOR is sent
+    final AtomicInteger passiveCommands = new AtomicInteger();
+    myFtplet = new DefaultFtplet() {
+      @Override
+      public FtpletResult beforeCommand(FtpSession session, FtpRequest request) {
+        if ("PASV".equals(request.getCommand()) && passiveCommands.incrementAndGet() % 2 == 1) {
+          return FtpletResult.DISCONNECT;
+        }
+        return FtpletResult.DEFAULT;
+      }
+    };
+
+    DeployTestUtils.runProcess(getProcess("127.0.0.1:" + testPort), 10000);
+    assertTrue(Arrays.equals(readFile(new File(myRemoteDir, sameSize.getName())), readFile(sameSize)), "old file of the same size was kept");
+    assertTrue(Arrays.equals(readFile(new File(myRemoteDir, larger.getName())), readFile(larger)), "old smaller file was resumed");
+    assertFalse(logContains("Resuming ["));
+    assertTrue(logContains("Uploaded [2] files"));
+  }
+
+  @Test
+  public void testResumeAfterDroppedDataConnection() throws Exception {
+    myRunnerParameters.put(FTPRunnerConstants.PARAM_TRANSFER_MODE, FTPRunnerConstants.TRANSFER_MODE_BINARY);
+    final File source = new File(createTempDir(), "large.bin");
+    // larger than socket buffers, so that the client notices the dropped data connection
+    DeployTestUtils.writeFile(source, randomBytes(16 * 1024 * 1024));
+    final Map<File, String> map = new HashMap<File, String>();
+    map.put(source, "");
+    myArtifactsCollections.add(new ArtifactsCollection("", "", map));
+
+    // the first STOR stores 64Kb of the file and closes the data connection
+    final AtomicBoolean dropped = new AtomicBoolean();
+    myFtplet = new DefaultFtplet() {
+      @Override
+      public FtpletResult onUploadStart(FtpSession session, FtpRequest request) throws FtpException, IOException {
+        if (!dropped.compareAndSet(false, true)) {
+          return FtpletResult.DEFAULT;
+        }
+        session.write(new DefaultFtpReply(FtpReply.REPLY_150_FILE_STATUS_OKAY, "Opening data connection"));
+        final OutputStream output = new LimitedOutputStream(new FileOutputStream(new File(myRemoteDir, request.getArgument())), 64 * 1024);
+        try {
+          final DataConnection dataConnection = session.getDataConnection().openConnection();
+          dataConnection.transferFromClient(session, output);
+        } catch (Exception e) {
+          // expected, the limit was reached
+        } finally {
+          output.close();
+          session.getDataConnection().closeDataConnection();
+        }
+        session.write(new DefaultFtpReply(FtpReply.REPLY_426_CONNECTION_CLOSED_TRANSFER_ABORTED, "Data connection closed"));
+        return FtpletResult.SKIP;
+      }
+    };
+
+    DeployTestUtils.runProcess(getProcess("127.0.0.1:" + testPort), 30000);
+    assertTrue(dropped.get());
+    assertTrue(logContains("Resuming ["));
+    assertTrue(Arrays.equals(readFile(new File(myRemoteDir, source.getName())), readFile(source)), "wrong content");
+  }
+
+  @Test
+  public void testInterruptStalledTransfer() throws Exception {
+    mySharedConfigParameters.put(FTPRunnerConstants.PARAM_FTP_PROTOCOL_LOG, FTPRunnerConstants.PROTOCOL_LOG_FULL);
+    final File source = new File(createTempDir(), "large.bin");
+    // larger than socket buffers, so that the client blocks sending it
+    DeployTestUtils.writeFile(source, randomBytes(16 * 1024 * 1024));
+    final Map<File, String> map = new HashMap<File, String>();
+    map.put(source, "");
+    myArtifactsCollections.add(new ArtifactsCollection("", "", map));
+
+    // the server accepts the data connection and stops reading from it
+    final CountDownLatch transferStarted = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    myFtplet = new DefaultFtplet() {
+      @Override
+      public FtpletResult onUploadStart(FtpSession session, FtpRequest request) throws FtpException, IOException {
+        session.write(new DefaultFtpReply(FtpReply.REPLY_150_FILE_STATUS_OKAY, "Opening data connection"));
+        try {
+          session.getDataConnection().openConnection();
+          transferStarted.countDown();
+          release.await(30, TimeUnit.SECONDS);
+        } catch (Exception e) {
+          // test is over
+        } finally {
+          session.getDataConnection().closeDataConnection();
+        }
+        session.write(new DefaultFtpReply(FtpReply.REPLY_426_CONNECTION_CLOSED_TRANSFER_ABORTED, "Data connection closed"));
+        return FtpletResult.SKIP;
+      }
+    };
+
+    final BuildProcess process = getProcess("127.0.0.1:" + testPort);
+    final Thread processThread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          process.start();
+        } catch (RunBuildException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    processThread.start();
+    try {
+      assertTrue(transferStarted.await(5, TimeUnit.SECONDS), "Transfer did not start");
+      process.interrupt();
+      new WaitFor(5000) {
+        @Override
+        protected boolean condition() {
+          return getUploadThreads().isEmpty();
+        }
+      };
+      assertThat(getUploadThreads()).describedAs("Upload threads alive after interruption").isEmpty();
+    } finally {
+      release.countDown();
+    }
+    processThread.join(5000);
+    assertTrue(process.isFinished());
+    assertEquals(process.waitFor(), BuildFinishedStatus.FINISHED_FAILED);
+    // control connection is left to the upload thread, nothing is sent on it from another thread
+    assertFalse(logContains("> ABOR"));
+  }
+
+  @NotNull
+  private static List<Thread> getUploadThreads() {
+    final List<Thread> result = new ArrayList<Thread>();
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().startsWith("FTP upload ") && thread.isAlive()) {
+        result.add(thread);
+      }
+    }
+    return result;
+  }
+
+  private static byte[] randomBytes(int size) {
+    final byte[] result = new byte[size];
+    new Random().nextBytes(result);
+    return result;
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    final RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      final byte[] result = new byte[(int) input.length()];
+      input.readFully(result);
+      return result;
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Fails once the limit of written bytes is reached
+   */
+  private static class LimitedOutputStream extends OutputStream {
+    private final OutputStream myOutput;
+    private long myRemaining;
+
+    LimitedOutputStream(OutputStream output, long limit) {
+      myOutput = output;
+      myRemaining = limit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      final int count = (int) Math.min(len, myRemaining);
+      myOutput.write(b, off, count);
+      myRemaining -= count;
+      if (count < len) {
+        throw new IOException("Limit reached");
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      myOutput.close();
+    }
+  }
+
   @Test
   public void testSecureConnection() throws Exception {
 //        Following code can help to test real certificates
@@ -283,6 +682,45 @@ public class FtpBuildProcessAdapterTest extends BaseDeployerTest {
     DeployTestUtils.assertCollectionsTransferred(myRemoteDir, myArtifactsCollections);
   }
 
+  @Test
+  public void testSecureConnectionWithSessionReuse() throws Exception {
+    if (!SessionReuseFTPSClient.isSupported()) {
+      throw new SkipException("JSSE session cache is not accessible on this JVM");
+    }
+    mySharedConfigParameters.put(FTPRunnerConstants.PARAM_FTP_TLS_SESSION_REUSE, "true");
+    myRunnerParameters.put(FTPRunnerConstants.PARAM_SSL_MODE, "2");
+    myArtifactsCollections.add(DeployTestUtils.buildArtifactsCollection(createTempFilesFactory(), "dest1", "dest2", "dest3"));
+    final BuildProcess process = getProcess("localhost:" + testPort);
+    DeployTestUtils.runProcess(process, 5000);
+    DeployTestUtils.assertCollectionsTransferred(myRemoteDir, myArtifactsCollections);
+
+    // data connections resume the session of control connection
+    final List<Boolean> resumed = new ArrayList<Boolean>();
+    final SessionReuseFTPSClient client = new SessionReuseFTPSClient(false) {
+      @Override
+      protected Socket _openDataConnection_(String command, String arg) throws IOException {
+        final Socket socket = super._openDataConnection_(command, arg);
+        resumed.add(Arrays.equals(((SSLSocket) socket).getSession().getId(), ((SSLSocket) _socket_).getSession().getId()));
+        return socket;
+      }
+    };
+    // TLS 1.3 resumes sessions with tickets under new session ids
+    client.setEnabledProtocols(new String[]{"TLSv1.2"});
+    client.setTrustManager(TrustManagerUtils.getAcceptAllTrustManager());
+    client.connect("localhost", testPort);
+    try {
+      assertTrue(client.login(myUsername, myPassword));
+      client.execPBSZ(0);
+      client.execPROT("P");
+      client.enterLocalPassiveMode();
+      assertTrue(client.storeFile("first.txt", new ByteArrayInputStream("first".getBytes())));
+      assertTrue(client.storeFile("second.txt", new ByteArrayInputStream("second".getBytes())));
+    } finally {
+      client.disconnect();
+    }
+    assertEquals(resumed, Arrays.asList(true, true));
+  }
+
   @Test
   public void testNotAuthorized() throws Exception {
     myArtifactsCollections.add(DeployTestUtils.buildArtifactsCollection(createTempFilesFactory(), "dest1", "dest2"));
@@ -300,6 +738,15 @@ public class FtpBuildProcessAdapterTest extends BaseDeployerTest {
     assertEquals(FileUtil.listFiles(myRemoteDir).length, 0);
   }
 
+  private boolean logContains(String text) {
+    for (String message : myResultingLog) {
+      if (message.contains(text)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private BuildProcess getProcess(String target) {
     return new FtpBuildProcessAdapter(myContext, target, myUsername, myPassword, myArtifactsCollections);
   }
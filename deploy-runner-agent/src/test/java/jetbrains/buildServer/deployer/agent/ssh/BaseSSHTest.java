@@ -27,7 +27,10 @@ import jetbrains.buildServer.deployer.common.DeployerRunnerConstants;
 import jetbrains.buildServer.deployer.common.SSHRunnerConstants;
 import jetbrains.buildServer.ssh.TeamCitySshKey;
 import org.apache.sshd.SshServer;
+import org.apache.sshd.common.Compression;
 import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.compression.CompressionNone;
+import org.apache.sshd.common.compression.CompressionZlib;
 import org.apache.sshd.common.keyprovider.FileKeyPairProvider;
 import org.apache.sshd.server.Command;
 import org.apache.sshd.server.PasswordAuthenticator;
@@ -58,6 +61,7 @@ public class BaseSSHTest extends BaseDeployerTest {
   static final String HOST_ADDR = "127.0.0.1";
   final Map<String, String> myRunnerParams = new HashMap<String, String>();
   final Map<String, String> myInternalProperties = new HashMap<String, String>();
+  final Map<String, String> mySharedConfigParameters = new HashMap<String, String>();
 
   final InternalPropertiesHolder myInternalPropertiesHolder = new InternalPropertiesHolder() {
     @Nullable
@@ -87,6 +91,7 @@ public class BaseSSHTest extends BaseDeployerTest {
     super.setUp();
 
     myRemoteDir = createTempDir();
+    mySharedConfigParameters.clear();
 
     myServer = SshServer.setUpDefaultServer();
     testPort = NetworkUtil.getFreePort(SSH_DEFAULT_PORT);
@@ -113,6 +118,8 @@ public class BaseSSHTest extends BaseDeployerTest {
     myServer.setKeyPairProvider(new FileKeyPairProvider(new String[]{keyFile.getCanonicalPath()}));
     myServer.setFileSystemFactory(new NativeFileSystemFactory());
     myServer.setSubsystemFactories(Arrays.<NamedFactory<Command>>asList(new SftpSubsystem.Factory()));
+    // zlib is negotiated only when the client asks for compression
+    myServer.setCompressionFactories(Arrays.<NamedFactory<Compression>>asList(new CompressionNone.Factory(), new CompressionZlib.Factory()));
 
     myServer.start();
 
@@ -134,6 +141,8 @@ public class BaseSSHTest extends BaseDeployerTest {
       will(returnValue(myRunnerParams));
       allowing(build).getBuildLogger();
       will(returnValue(logger));
+      allowing(build).getSharedConfigParameters();
+      will(returnValue(mySharedConfigParameters));
       allowing(build).getCheckoutDirectory();
       will(returnValue(myWorkingDir));
       allowing(mySshKeyManager).getKey("key_id_value");
@@ -18,11 +18,18 @@ package jetbrains.buildServer.deployer.agent.ssh;
 
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.agent.BuildProcess;
+import jetbrains.buildServer.agent.impl.artifacts.ArtifactsCollection;
 import jetbrains.buildServer.deployer.agent.util.DeployTestUtils;
+import jetbrains.buildServer.deployer.common.SSHRunnerConstants;
+import jetbrains.buildServer.util.FileUtil;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
 
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
 /**
@@ -57,6 +64,16 @@ public abstract class BaseSSHTransferTest extends BaseSSHTest {
     DeployTestUtils.assertCollectionsTransferred(new File(myRemoteDir, subPath), myArtifactsCollections);
   }
 
+  @Test
+  public void testTransferToSharedDirectories() throws Exception {
+    final String subPath = "test_path/subdir";
+    myArtifactsCollections.add(DeployTestUtils.buildArtifactsCollection(createTempFilesFactory(), "dest1", "dest1/sub", "dest1/sub/deeper"));
+    myArtifactsCollections.add(DeployTestUtils.buildArtifactsCollection(createTempFilesFactory(), "dest1/sub", "dest2"));
+    final BuildProcess process = getProcess(HOST_ADDR + ":" + subPath);
+    DeployTestUtils.runProcess(process, 5000);
+    DeployTestUtils.assertCollectionsTransferred(new File(myRemoteDir, subPath), myArtifactsCollections);
+  }
+
   @Test
   public void testTransferAbsoluteBasePath() throws Exception {
     final File absDestination = new File(createTempDir(), "sub/path");
@@ -84,6 +101,36 @@ public abstract class BaseSSHTransferTest extends BaseSSHTest {
     DeployTestUtils.assertCollectionsTransferred(existingPath, myArtifactsCollections);
   }
 
+  @Test
+  public void testIncrementalTransfer() throws Exception {
+    mySharedConfigParameters.put(SSHRunnerConstants.PARAM_SSH_INCREMENTAL, "true");
+    final File unchanged = createTempFilesFactory().createTempFile(100);
+    final File changed = createTempFilesFactory().createTempFile(100);
+    // a copy made without preserving the time would get the current one
+    final long dayAgo = System.currentTimeMillis() - 86400000;
+    assertTrue(unchanged.setLastModified(dayAgo));
+    assertTrue(changed.setLastModified(dayAgo));
+    final Map<File, String> filePathMap = new HashMap<File, String>();
+    filePathMap.put(unchanged, "dest1");
+    filePathMap.put(changed, "dest1");
+    myArtifactsCollections.add(new ArtifactsCollection("incremental", "dest1", filePathMap));
+    DeployTestUtils.runProcess(getProcess(HOST_ADDR + ":incremental"), 5000);
+    DeployTestUtils.assertCollectionsTransferred(new File(myRemoteDir, "incremental"), myArtifactsCollections);
+
+    final File remoteUnchanged = new File(myRemoteDir, "incremental/dest1/" + unchanged.getName());
+    assertEquals(remoteUnchanged.lastModified() / 1000, unchanged.lastModified() / 1000);
+
+    // remote copy with the same size and modification time is not uploaded again
+    final long timestamp = remoteUnchanged.lastModified();
+    DeployTestUtils.writeFile(remoteUnchanged, new byte[100]);
+    assertTrue(remoteUnchanged.setLastModified(timestamp));
+    DeployTestUtils.writeFile(changed, new byte[50]);
+
+    DeployTestUtils.runProcess(getProcess(HOST_ADDR + ":incremental"), 5000);
+    assertFalse(FileUtil.readText(remoteUnchanged).equals(FileUtil.readText(unchanged)));
+    assertEquals(new File(myRemoteDir, "incremental/dest1/" + changed.getName()).length(), 50);
+  }
+
 
   protected abstract BuildProcess getProcess(String targetBasePath) throws Exception;
 }
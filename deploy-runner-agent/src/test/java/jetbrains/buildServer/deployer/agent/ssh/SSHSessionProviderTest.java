@@ -16,15 +16,24 @@
 
 package jetbrains.buildServer.deployer.agent.ssh;
 
+import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Logger;
 import com.jcraft.jsch.Session;
+import jetbrains.buildServer.agent.impl.artifacts.ArtifactsCollection;
 import jetbrains.buildServer.deployer.common.DeployerRunnerConstants;
 import jetbrains.buildServer.deployer.common.SSHRunnerConstants;
 import jetbrains.buildServer.util.FileUtil;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 
+import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
 
 /**
@@ -95,6 +104,71 @@ public class SSHSessionProviderTest extends BaseSSHTest {
     assertSessionIsConnected();
   }
 
+  public void testCompression() throws Exception {
+    mySharedConfigParameters.put(SSHRunnerConstants.PARAM_SSH_COMPRESSION, "true");
+    mySharedConfigParameters.put(SSHRunnerConstants.PARAM_SSH_COMPRESSION_LEVEL, "9");
+    final List<String> kexLines = connectAndCollectKexLines();
+    assertEquals(kexLines.size(), 2, kexLines.toString());
+    for (String line : kexLines) {
+      assertTrue(line.endsWith(" zlib"), line);
+    }
+  }
+
+  public void testCompressionDisabled() throws Exception {
+    final List<String> kexLines = connectAndCollectKexLines();
+    assertEquals(kexLines.size(), 2, kexLines.toString());
+    for (String line : kexLines) {
+      assertTrue(line.endsWith(" none"), line);
+    }
+  }
+
+  public void testCompressibilityEstimate() throws Exception {
+    final StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      text.append("some compressible text ").append(i % 10).append('\n');
+    }
+    final File textFile = createTempFile(text.toString());
+    final byte[] randomContent = new byte[200000];
+    new Random(42).nextBytes(randomContent);
+    final File randomFile = createTempFile();
+    final FileOutputStream out = new FileOutputStream(randomFile);
+    try {
+      out.write(randomContent);
+    } finally {
+      out.close();
+    }
+
+    assertTrue(CompressibilityEstimator.estimateRatio(Collections.singletonList(
+        new ArtifactsCollection("text", "", Collections.singletonMap(textFile, "")))) < 0.2);
+    assertTrue(CompressibilityEstimator.estimateRatio(Collections.singletonList(
+        new ArtifactsCollection("random", "", Collections.singletonMap(randomFile, "")))) > 0.9);
+  }
+
+  /**
+   * Connect and return negotiated algorithms as logged by JSch, e.g. "kex: server->client aes128-ctr hmac-sha1 zlib",
+   * the last one is compression
+   */
+  private List<String> connectAndCollectKexLines() throws JSchException {
+    final List<String> kexLines = new ArrayList<String>();
+    JSch.setLogger(new Logger() {
+      public boolean isEnabled(int level) {
+        return level == Logger.INFO;
+      }
+
+      public void log(int level, String message) {
+        if (message.startsWith("kex: server->client") || message.startsWith("kex: client->server")) {
+          kexLines.add(message);
+        }
+      }
+    });
+    try {
+      assertSessionIsConnected();
+    } finally {
+      JSch.setLogger(null);
+    }
+    return kexLines;
+  }
+
   private void assertSessionIsConnected() throws JSchException {
     Session session = null;
     try {
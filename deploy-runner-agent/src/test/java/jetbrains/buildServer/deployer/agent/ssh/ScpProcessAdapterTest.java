@@ -16,11 +16,30 @@
 
 package jetbrains.buildServer.deployer.agent.ssh;
 
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.Session;
+import jetbrains.buildServer.agent.BuildProcess;
+import jetbrains.buildServer.agent.impl.artifacts.ArtifactsCollection;
+import jetbrains.buildServer.deployer.agent.ssh.scp.ScpAckReader;
+import jetbrains.buildServer.deployer.agent.ssh.scp.ScpExecUtil;
+import jetbrains.buildServer.deployer.agent.ssh.scp.ScpOperationBuilder;
 import jetbrains.buildServer.deployer.agent.ssh.scp.ScpProcessAdapter;
+import jetbrains.buildServer.deployer.agent.ssh.scp.ScpTransferListener;
+import jetbrains.buildServer.deployer.agent.util.DeployTestUtils;
 import jetbrains.buildServer.deployer.common.DeployerRunnerConstants;
+import jetbrains.buildServer.deployer.common.SSHRunnerConstants;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.*;
+import java.util.*;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
 @Test
 public class ScpProcessAdapterTest extends BaseSSHTransferTest {
 
@@ -30,6 +49,207 @@ public class ScpProcessAdapterTest extends BaseSSHTransferTest {
     super.setUp();
   }
 
+  public void testPipelinedTransfer() throws Exception {
+    mySharedConfigParameters.put(SSHRunnerConstants.PARAM_SCP_PIPELINING, "true");
+    myArtifactsCollections.add(DeployTestUtils.buildArtifactsCollection(createTempFilesFactory(),
+        "dest1", "dest1/sub", "dest1/sub/deeper", "dest2", "dest2/sub", "dest3"));
+    final BuildProcess process = getProcess(HOST_ADDR + ":pipelined");
+    DeployTestUtils.runProcess(process, 5000);
+    DeployTestUtils.assertCollectionsTransferred(new File(myRemoteDir, "pipelined"), myArtifactsCollections);
+  }
+
+  public void testParallelTransfer() throws Exception {
+    mySharedConfigParameters.put(SSHRunnerConstants.PARAM_PARALLEL_CHANNELS, "3");
+    myArtifactsCollections.add(DeployTestUtils.buildArtifactsCollection(createTempFilesFactory(),
+        "dest1", "dest1/sub", "dest1/sub/deeper", "dest2", "dest2/sub", "dest3"));
+    myArtifactsCollections.add(DeployTestUtils.buildArtifactsCollection(createTempFilesFactory(), "dest1/sub", "dest4"));
+    final BuildProcess process = getProcess(HOST_ADDR + ":parallel");
+    DeployTestUtils.runProcess(process, 5000);
+    DeployTestUtils.assertCollectionsTransferred(new File(myRemoteDir, "parallel"), myArtifactsCollections);
+  }
+
+  public void testCopyDirectoryTree() throws Exception {
+    final File root = new File(createTempDir(), "tree");
+    assertTrue(new File(root, "sub/deeper").mkdirs());
+    assertTrue(new File(root, "empty").mkdirs());
+    final List<String> expectedFiles = Arrays.asList("tree/a.txt", "tree/sub/b.txt", "tree/sub/c.txt", "tree/sub/deeper/d.txt");
+    for (String path : expectedFiles) {
+      DeployTestUtils.writeFile(new File(root.getParentFile(), path), path.getBytes());
+    }
+
+    myRunnerParams.put(DeployerRunnerConstants.PARAM_TARGET_URL, HOST_ADDR + ":");
+    final List<File> notified = new ArrayList<File>();
+    final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+    final Session session = new SSHSessionProvider(myContext, myInternalPropertiesHolder, mySshKeyManager).getSession();
+    try {
+      final ChannelExec channel = (ChannelExec) session.openChannel("exec");
+      channel.setCommand("scp -rt .");
+      final OutputStream out = new RecordingOutputStream(channel.getOutputStream(), sent);
+      final InputStream in = channel.getInputStream();
+      final ScpAckReader acks = new ScpAckReader(in, out, 0);
+      channel.connect();
+      try {
+        ScpExecUtil.checkScpAck(in);
+        ScpOperationBuilder.getCopyDirectoryOperation(root, new ScpTransferListener() {
+          public void beforeTransfer(@NotNull File file) {
+            notified.add(file);
+          }
+        }).execute(out, acks);
+        acks.awaitAcks();
+      } finally {
+        channel.disconnect();
+      }
+    } finally {
+      session.disconnect();
+    }
+
+    // every file header is sent inside the headers of its directories
+    final List<String> sentFiles = new ArrayList<String>();
+    final List<String> sentDirs = new ArrayList<String>();
+    final LinkedList<String> currentPath = new LinkedList<String>();
+    final DataInputStream stream = new DataInputStream(new ByteArrayInputStream(sent.toByteArray()));
+    while (stream.available() > 0) {
+      final String header = readLine(stream);
+      final String[] parts = header.split(" ", 3);
+      if (header.startsWith("D")) {
+        currentPath.add(parts[2]);
+        sentDirs.add(StringUtil.join(currentPath, "/"));
+      } else if (header.startsWith("C")) {
+        sentFiles.add(StringUtil.join(currentPath, "/") + "/" + parts[2]);
+        // content and its trailing zero byte
+        stream.skipBytes(Integer.parseInt(parts[1]) + 1);
+      } else {
+        assertEquals(header, "E");
+        currentPath.removeLast();
+      }
+    }
+    assertTrue(currentPath.isEmpty());
+    assertEquals(new HashSet<String>(sentDirs), new HashSet<String>(Arrays.asList("tree", "tree/empty", "tree/sub", "tree/sub/deeper")));
+    assertEquals(new HashSet<String>(sentFiles), new HashSet<String>(expectedFiles));
+
+    // listener is notified of each file, in the order files are sent
+    final List<String> notifiedFiles = new ArrayList<String>();
+    for (File file : notified) {
+      notifiedFiles.add(FileUtil.getRelativePath(root.getParentFile(), file).replace(File.separatorChar, '/'));
+    }
+    assertEquals(notifiedFiles, sentFiles);
+
+    for (String path : expectedFiles) {
+      assertEquals(FileUtil.readText(new File(myRemoteDir, path)), path);
+    }
+    assertTrue(new File(myRemoteDir, "tree/empty").isDirectory());
+  }
+
+  private static String readLine(DataInputStream stream) throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    int c;
+    while ((c = stream.read()) != '\n') {
+      assertTrue(c >= 0, "Unexpected end of scp stream");
+      sb.append((char) c);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Copies everything written to the stream into another one
+   */
+  private static class RecordingOutputStream extends FilterOutputStream {
+    private final OutputStream myRecord;
+
+    RecordingOutputStream(OutputStream out, OutputStream record) {
+      super(out);
+      myRecord = record;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      myRecord.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      myRecord.write(b, off, len);
+    }
+  }
+
+  /**
+   * Compares throughput of the previous sender (1 KB buffer, flush and ack wait after every command)
+   * with synchronous and pipelined modes of the current one on a single large file.
+   * File size in bytes can be set with 'scp.benchmark.size' system property
+   */
+  @Test(enabled = false)
+  public void benchmarkLargeFileTransfer() throws Exception {
+    final File source = new File(createTempDir(), "large.bin");
+    final RandomAccessFile file = new RandomAccessFile(source, "rw");
+    try {
+      file.setLength(Long.getLong("scp.benchmark.size", 2L * 1024 * 1024 * 1024));
+    } finally {
+      file.close();
+    }
+    myArtifactsCollections.add(new ArtifactsCollection("large.bin", "", Collections.singletonMap(source, "")));
+
+    myRunnerParams.put(DeployerRunnerConstants.PARAM_TARGET_URL, HOST_ADDR + ":");
+    long start = System.currentTimeMillis();
+    uploadWithPreviousSender(source);
+    printThroughput("Previous 1 KB sender", source, start);
+
+    for (String pipelining : new String[]{"false", "true"}) {
+      mySharedConfigParameters.put(SSHRunnerConstants.PARAM_SCP_PIPELINING, pipelining);
+      start = System.currentTimeMillis();
+      DeployTestUtils.runProcess(getProcess(HOST_ADDR + ":benchmark_" + pipelining), Integer.MAX_VALUE);
+      printThroughput("Pipelining " + pipelining, source, start);
+    }
+  }
+
+  private static void printThroughput(String name, File source, long start) {
+    final long duration = Math.max(1, System.currentTimeMillis() - start);
+    System.out.println(name + ": " + (source.length() / 1024 * 1000 / 1024 / duration) + " MB/s");
+  }
+
+  /**
+   * Copy of the file sender as it was before ScpAckReader, uploads the file to remote base directory
+   */
+  private void uploadWithPreviousSender(File source) throws Exception {
+    final Session session = new SSHSessionProvider(myContext, myInternalPropertiesHolder, mySshKeyManager).getSession();
+    try {
+      final ChannelExec channel = (ChannelExec) session.openChannel("exec");
+      channel.setCommand("scp -rt .");
+      final OutputStream out = channel.getOutputStream();
+      final InputStream in = channel.getInputStream();
+      channel.connect();
+      try {
+        ScpExecUtil.checkScpAck(in);
+        final String command = "C0755 " + source.length() + " " + source.getName() + "\n";
+        out.write(command.getBytes());
+        out.flush();
+        ScpExecUtil.checkScpAck(in);
+
+        final FileInputStream fis = new FileInputStream(source);
+        final byte[] buf = new byte[1024];
+        try {
+          while (true) {
+            int len = fis.read(buf, 0, buf.length);
+            if (len <= 0) break;
+            out.write(buf, 0, len);
+          }
+        } finally {
+          fis.close();
+        }
+
+        buf[0] = 0;
+        out.write(buf, 0, 1);
+        out.flush();
+        ScpExecUtil.checkScpAck(in);
+      } finally {
+        channel.disconnect();
+      }
+    } finally {
+      session.disconnect();
+    }
+  }
+
   @Override
   protected ScpProcessAdapter getProcess(String targetBasePath) {
     myRunnerParams.put(DeployerRunnerConstants.PARAM_TARGET_URL, targetBasePath);
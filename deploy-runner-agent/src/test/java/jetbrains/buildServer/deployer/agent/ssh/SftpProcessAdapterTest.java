@@ -17,11 +17,29 @@
 package jetbrains.buildServer.deployer.agent.ssh;
 
 import jetbrains.buildServer.agent.BuildProcess;
+import jetbrains.buildServer.agent.impl.artifacts.ArtifactsCollection;
 import jetbrains.buildServer.deployer.agent.ssh.sftp.SftpBuildProcessAdapter;
+import jetbrains.buildServer.deployer.agent.util.DeployTestUtils;
+import jetbrains.buildServer.deployer.agent.util.LatencyProxy;
 import jetbrains.buildServer.deployer.common.DeployerRunnerConstants;
+import jetbrains.buildServer.deployer.common.SSHRunnerConstants;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
 @Test
 public class SftpProcessAdapterTest extends BaseSSHTransferTest {
 
@@ -31,6 +49,158 @@ public class SftpProcessAdapterTest extends BaseSSHTransferTest {
     super.setUp();
   }
 
+  public void testParallelTransfer() throws Exception {
+    mySharedConfigParameters.put(SSHRunnerConstants.PARAM_PARALLEL_CHANNELS, "3");
+    myArtifactsCollections.add(DeployTestUtils.buildArtifactsCollection(createTempFilesFactory(),
+        "dest1", "dest1/sub", "dest1/sub/deeper", "dest2", "dest2/sub", "dest3"));
+    myArtifactsCollections.add(DeployTestUtils.buildArtifactsCollection(createTempFilesFactory(), "dest1/sub", "dest4"));
+    final BuildProcess process = getProcess(HOST_ADDR + ":parallel");
+    DeployTestUtils.runProcess(process, 5000);
+    DeployTestUtils.assertCollectionsTransferred(new File(myRemoteDir, "parallel"), myArtifactsCollections);
+  }
+
+  public void testStripedTransfer() throws Exception {
+    mySharedConfigParameters.put(SSHRunnerConstants.PARAM_SFTP_STRIPES, "3");
+    mySharedConfigParameters.put(SSHRunnerConstants.PARAM_SFTP_STRIPE_THRESHOLD, "50");
+    mySharedConfigParameters.put(SSHRunnerConstants.PARAM_PARALLEL_CHANNELS, "2");
+    myArtifactsCollections.add(DeployTestUtils.buildArtifactsCollection(createTempFilesFactory(), "", "dest1", "dest1/sub"));
+    final File small = createTempFilesFactory().createTempFile(10);
+    myArtifactsCollections.add(new ArtifactsCollection("small", "dest2", Collections.singletonMap(small, "dest2")));
+    final BuildProcess process = getProcess(HOST_ADDR + ":striped");
+    DeployTestUtils.runProcess(process, 5000);
+    DeployTestUtils.assertCollectionsTransferred(new File(myRemoteDir, "striped"), myArtifactsCollections);
+  }
+
+  public void testStaleUploadIsNotResumed() throws Exception {
+    mySharedConfigParameters.put(SSHRunnerConstants.PARAM_SFTP_RESUME, "true");
+    final File source = createTempFilesFactory().createTempFile(100);
+    myArtifactsCollections.add(new ArtifactsCollection("stale", "dest1", Collections.singletonMap(source, "dest1")));
+
+    // left by another build, resuming it would keep its content
+    final File remoteDir = new File(myRemoteDir, "stale/dest1");
+    assertTrue(remoteDir.mkdirs());
+    DeployTestUtils.writeFile(new File(remoteDir, source.getName() + ".teamcity-upload"), new byte[40]);
+
+    final BuildProcess process = getProcess(HOST_ADDR + ":stale");
+    DeployTestUtils.runProcess(process, 5000);
+    DeployTestUtils.assertCollectionsTransferred(new File(myRemoteDir, "stale"), myArtifactsCollections);
+    assertFalse(new File(remoteDir, source.getName() + ".teamcity-upload").exists());
+  }
+
+  public void testResumeStaleUploadWithTailCheck() throws Exception {
+    mySharedConfigParameters.put(SSHRunnerConstants.PARAM_SFTP_RESUME, "true");
+    mySharedConfigParameters.put(SSHRunnerConstants.PARAM_SFTP_RESUME_CHECK_SIZE, "16");
+    final File resumed = createTempFilesFactory().createTempFile(100);
+    final File restarted = createTempFilesFactory().createTempFile(100);
+    final Map<File, String> filePathMap = new HashMap<File, String>();
+    filePathMap.put(resumed, "dest1");
+    filePathMap.put(restarted, "dest1");
+    myArtifactsCollections.add(new ArtifactsCollection("resume", "dest1", filePathMap));
+
+    final File remoteDir = new File(myRemoteDir, "resume/dest1");
+    assertTrue(remoteDir.mkdirs());
+    DeployTestUtils.writeFile(new File(remoteDir, resumed.getName() + ".teamcity-upload"), Arrays.copyOf(readFile(resumed), 40));
+    DeployTestUtils.writeFile(new File(remoteDir, restarted.getName() + ".teamcity-upload"), new byte[40]);
+    // previous version of the file is replaced
+    DeployTestUtils.writeFile(new File(remoteDir, restarted.getName()), new byte[10]);
+
+    final BuildProcess process = getProcess(HOST_ADDR + ":resume");
+    DeployTestUtils.runProcess(process, 5000);
+    DeployTestUtils.assertCollectionsTransferred(new File(myRemoteDir, "resume"), myArtifactsCollections);
+    assertFalse(new File(remoteDir, resumed.getName() + ".teamcity-upload").exists());
+    assertFalse(new File(remoteDir, restarted.getName() + ".teamcity-upload").exists());
+  }
+
+  public void testRetryResumesUpload() throws Exception {
+    doTestRetryAfterDroppedConnection(1);
+  }
+
+  public void testRetryResumesStripedUpload() throws Exception {
+    doTestRetryAfterDroppedConnection(3);
+  }
+
+  private void doTestRetryAfterDroppedConnection(int stripes) throws Exception {
+    mySharedConfigParameters.put(SSHRunnerConstants.PARAM_SFTP_RESUME, "true");
+    mySharedConfigParameters.put(SSHRunnerConstants.PARAM_SFTP_RETRIES, "3");
+    mySharedConfigParameters.put(SSHRunnerConstants.PARAM_SFTP_MAX_REQUESTS, "1");
+    mySharedConfigParameters.put(SSHRunnerConstants.PARAM_SFTP_STRIPES, String.valueOf(stripes));
+    mySharedConfigParameters.put(SSHRunnerConstants.PARAM_SFTP_STRIPE_THRESHOLD, "1024");
+    final File source = new File(createTempDir(), "large.bin");
+    final byte[] content = new byte[8 * 1024 * 1024];
+    new Random(42).nextBytes(content);
+    DeployTestUtils.writeFile(source, content);
+    myArtifactsCollections.add(new ArtifactsCollection("large.bin", "", Collections.singletonMap(source, "")));
+
+    final File tempFile = new File(myRemoteDir, "retry/large.bin.teamcity-upload");
+    final LatencyProxy proxy = new LatencyProxy(testPort, 5);
+    final AtomicBoolean dropped = new AtomicBoolean();
+    final Thread watcher = new Thread(new Runnable() {
+      public void run() {
+        try {
+          while (tempFile.length() < 1024 * 1024) {
+            Thread.sleep(10);
+          }
+          proxy.dropConnections();
+          dropped.set(true);
+        } catch (Exception ignored) {
+        }
+      }
+    }, "SFTP connection dropper");
+    watcher.setDaemon(true);
+    try {
+      myRunnerParams.put(SSHRunnerConstants.PARAM_PORT, String.valueOf(proxy.getPort()));
+      watcher.start();
+      DeployTestUtils.runProcess(getProcess(HOST_ADDR + ":retry"), 30000);
+      assertTrue(dropped.get());
+      assertTrue(proxy.getConnectionCount() > 1);
+    } finally {
+      watcher.interrupt();
+      proxy.close();
+    }
+    assertEquals(readFile(new File(myRemoteDir, "retry/large.bin")), content);
+    assertFalse(tempFile.exists());
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    final RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      final byte[] result = new byte[(int) input.length()];
+      input.readFully(result);
+      return result;
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Compares throughput for different numbers of outstanding write requests over a link with 50ms round trip time.
+   * File size in bytes can be set with 'sftp.benchmark.size' system property
+   */
+  @Test(enabled = false)
+  public void benchmarkMaxRequests() throws Exception {
+    final File source = new File(createTempDir(), "large.bin");
+    final RandomAccessFile file = new RandomAccessFile(source, "rw");
+    try {
+      file.setLength(Long.getLong("sftp.benchmark.size", 64L * 1024 * 1024));
+    } finally {
+      file.close();
+    }
+    myArtifactsCollections.add(new ArtifactsCollection("large.bin", "", Collections.singletonMap(source, "")));
+    final LatencyProxy proxy = new LatencyProxy(testPort, 25);
+    try {
+      myRunnerParams.put(SSHRunnerConstants.PARAM_PORT, String.valueOf(proxy.getPort()));
+      for (int maxRequests : new int[]{1, 16, 64, 256}) {
+        mySharedConfigParameters.put(SSHRunnerConstants.PARAM_SFTP_MAX_REQUESTS, String.valueOf(maxRequests));
+        final long start = System.currentTimeMillis();
+        DeployTestUtils.runProcess(getProcess(HOST_ADDR + ":benchmark_" + maxRequests), Integer.MAX_VALUE);
+        final long duration = Math.max(1, System.currentTimeMillis() - start);
+        System.out.println("Max requests " + maxRequests + ": " + (source.length() / 1024 * 1000 / 1024 / duration) + " MB/s");
+      }
+    } finally {
+      proxy.close();
+    }
+  }
+
   @Override
   protected BuildProcess getProcess(String targetBasePath) {
     myRunnerParams.put(DeployerRunnerConstants.PARAM_TARGET_URL, targetBasePath);
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.deployer.agent.ssh.tar;
+
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.testng.Assert.assertEquals;
+
+@Test
+public class ParallelGzipOutputStreamTest extends BaseTestCase {
+
+  public void testRoundTrip() throws Exception {
+    final byte[] data = createArtifactMix(3 * ParallelGzipOutputStream.BLOCK_SIZE + 12345);
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    final OutputStream out = new ParallelGzipOutputStream(compressed, 6, 3);
+    // write in uneven chunks to cross block boundaries
+    int offset = 0;
+    while (offset < data.length) {
+      final int length = Math.min(77777, data.length - offset);
+      out.write(data, offset, length);
+      offset += length;
+    }
+    out.close();
+
+    assertEquals(decompress(compressed.toByteArray()), data);
+  }
+
+  public void testEmptyStream() throws Exception {
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    new ParallelGzipOutputStream(compressed, 6, 2).close();
+    assertEquals(compressed.size(), 0);
+  }
+
+  /**
+   * Prints compression throughput and ratio for every level
+   */
+  @Test(enabled = false)
+  public void benchmarkLevels() throws Exception {
+    final byte[] data = createArtifactMix(256 * 1024 * 1024);
+    for (int level = 1; level <= 9; level++) {
+      final CountingOutputStream counter = new CountingOutputStream();
+      final long start = System.currentTimeMillis();
+      final OutputStream out = new ParallelGzipOutputStream(counter, level, Runtime.getRuntime().availableProcessors());
+      out.write(data);
+      out.close();
+      final long duration = Math.max(1, System.currentTimeMillis() - start);
+      System.out.println("Level " + level + ": " + (data.length / 1024 * 1000 / 1024 / duration) + " MB/s, " +
+                         "ratio " + (100 * counter.myCount / data.length) + "%");
+    }
+  }
+
+  /**
+   * Text-like content interleaved with incompressible binary content, similar to a web application bundle
+   */
+  private static byte[] createArtifactMix(final int size) {
+    final byte[] result = new byte[size];
+    final Random random = new Random(42);
+    final byte[] text = "<div class=\"item\">function render(value) { return value.toString(); }</div>\n".getBytes();
+    int offset = 0;
+    while (offset < size) {
+      final int length = Math.min(size - offset, 4096 + random.nextInt(64 * 1024));
+      if (random.nextBoolean()) {
+        for (int i = 0; i < length; i++) {
+          result[offset + i] = text[(offset + i) % text.length];
+        }
+      } else {
+        final byte[] binary = new byte[length];
+        random.nextBytes(binary);
+        System.arraycopy(binary, 0, result, offset, length);
+      }
+      offset += length;
+    }
+    return result;
+  }
+
+  private static byte[] decompress(final byte[] compressed) throws IOException {
+    final GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+    final ByteArrayOutputStream result = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) > 0) {
+      result.write(buffer, 0, read);
+    }
+    in.close();
+    return result.toByteArray();
+  }
+
+  private static class CountingOutputStream extends OutputStream {
+    private long myCount = 0;
+
+    @Override
+    public void write(int b) {
+      myCount++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      myCount += len;
+    }
+  }
+}
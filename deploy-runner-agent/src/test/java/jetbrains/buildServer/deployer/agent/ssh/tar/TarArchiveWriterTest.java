@@ -0,0 +1,179 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.deployer.agent.ssh.tar;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.deployer.agent.util.DeployTestUtils;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+@Test
+public class TarArchiveWriterTest extends BaseTestCase {
+  private static final long MTIME = 1500000000L;
+
+  public void testHeaderLayout() throws Exception {
+    final byte[] archive = writeArchive("dir/file.txt", createFile("hello"));
+    // header, content padded to a block, end of archive marker
+    assertEquals(archive.length, 4 * 512);
+
+    assertEquals(readString(archive, 0, 100), "dir/file.txt");
+    assertEquals(readString(archive, 100, 8), "0000755");
+    assertEquals(readString(archive, 108, 8), "0000000");
+    assertEquals(readString(archive, 116, 8), "0000000");
+    assertEquals(readString(archive, 124, 12), "00000000005");
+    assertEquals(Long.parseLong(readString(archive, 136, 12), 8), MTIME);
+    assertEquals(archive[156], (byte) '0');
+    assertEquals(readString(archive, 257, 8), "ustar  ");
+    assertEquals(Long.parseLong(readString(archive, 148, 8).trim(), 8), computeChecksum(archive, 0));
+
+    assertEquals(readString(archive, 512, 512), "hello");
+    assertEquals(Arrays.copyOfRange(archive, 2 * 512, 4 * 512), new byte[2 * 512]);
+  }
+
+  public void testLongName() throws Exception {
+    final String name = createLongName();
+    final byte[] archive = writeArchive(name, createFile("content"));
+    // long name header, name block, file header, content block, end of archive marker
+    assertEquals(archive.length, 6 * 512);
+
+    assertEquals(readString(archive, 0, 100), "././@LongLink");
+    assertEquals(archive[156], (byte) 'L');
+    assertEquals(Long.parseLong(readString(archive, 124, 12), 8), name.length() + 1);
+    assertEquals(Long.parseLong(readString(archive, 148, 8).trim(), 8), computeChecksum(archive, 0));
+    assertEquals(readString(archive, 512, 512), name);
+
+    assertEquals(readString(archive, 2 * 512, 100), name.substring(0, 100));
+    assertEquals(archive[2 * 512 + 156], (byte) '0');
+    assertEquals(Long.parseLong(readString(archive, 2 * 512 + 148, 8).trim(), 8), computeChecksum(archive, 2 * 512));
+    assertEquals(readString(archive, 3 * 512, 512), "content");
+  }
+
+  public void testListedByTar() throws Exception {
+    final String longName = createLongName();
+    final File archive = createTempFile();
+    final OutputStream out = new FileOutputStream(archive);
+    try {
+      final TarArchiveWriter writer = new TarArchiveWriter(out);
+      writer.putFile("file.txt", createFile("first"));
+      writer.putFile("dir/sub/file.bin", createFile(""));
+      writer.putFile(longName, createFile("third"));
+      writer.finish();
+    } finally {
+      out.close();
+    }
+
+    final List<String> entries = runTar("-tf", archive.getAbsolutePath());
+    assertEquals(entries, Arrays.asList("file.txt", "dir/sub/file.bin", longName));
+  }
+
+  public void testEntryNameForRelativeTarget() {
+    assertEquals(TarProcessAdapter.getEntryName("deploy/dest", "file.txt"), "deploy/dest/file.txt");
+    assertEquals(TarProcessAdapter.getEntryName("/dest", "file.txt"), "dest/file.txt");
+    assertEquals(TarProcessAdapter.getEntryName("deploy/./dest/", "file.txt"), "deploy/dest/file.txt");
+    assertEquals(TarProcessAdapter.getEntryName("deploy/dest\\sub", "file.txt"), "deploy/dest/sub/file.txt");
+    assertEquals(TarProcessAdapter.getEntryName("./", "file.txt"), "file.txt");
+  }
+
+  public void testEntryNameForAbsoluteTarget() {
+    // archive of absolute targets is extracted in the root directory
+    assertEquals(TarProcessAdapter.getEntryName("/var/www/app", "index.html"), "var/www/app/index.html");
+    assertEquals(TarProcessAdapter.getEntryName("//var//www/", "index.html"), "var/www/index.html");
+    assertEquals(TarProcessAdapter.getEntryName("/", "index.html"), "index.html");
+  }
+
+  private File createFile(String content) throws IOException {
+    final File file = createTempFile();
+    DeployTestUtils.writeFile(file, content.getBytes("UTF-8"));
+    assertEquals(file.setLastModified(MTIME * 1000), true);
+    return file;
+  }
+
+  private static String createLongName() {
+    final StringBuilder sb = new StringBuilder();
+    while (sb.length() < 150) {
+      sb.append("directory").append(sb.length()).append('/');
+    }
+    return sb.append("file.txt").toString();
+  }
+
+  private static byte[] writeArchive(String name, File file) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final TarArchiveWriter writer = new TarArchiveWriter(out);
+    writer.putFile(name, file);
+    writer.finish();
+    return out.toByteArray();
+  }
+
+  /**
+   * @return NUL-terminated string of the field
+   */
+  private static String readString(byte[] archive, int offset, int length) throws IOException {
+    int end = offset;
+    while (end < offset + length && archive[end] != 0) {
+      end++;
+    }
+    return new String(archive, offset, end - offset, "UTF-8");
+  }
+
+  /**
+   * Sum of header bytes with checksum field counted as spaces
+   */
+  private static long computeChecksum(byte[] archive, int offset) {
+    long result = 0;
+    for (int i = offset; i < offset + 512; i++) {
+      result += i >= offset + 148 && i < offset + 156 ? ' ' : archive[i] & 0xFF;
+    }
+    return result;
+  }
+
+  private static List<String> runTar(String... args) throws Exception {
+    final List<String> command = new ArrayList<String>();
+    command.add("tar");
+    command.addAll(Arrays.asList(args));
+    final Process process;
+    try {
+      process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    } catch (IOException e) {
+      throw new SkipException("tar is not available: " + e.getMessage());
+    }
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final InputStream in = process.getInputStream();
+    try {
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        output.write(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    assertEquals(process.waitFor(), 0, output.toString("UTF-8"));
+    return Arrays.asList(output.toString("UTF-8").trim().split("\n"));
+  }
+}
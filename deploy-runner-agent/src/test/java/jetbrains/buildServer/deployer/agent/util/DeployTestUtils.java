@@ -26,6 +26,7 @@ import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.WaitFor;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
@@ -83,6 +84,15 @@ public class DeployTestUtils {
     }
   }
 
+  public static void writeFile(File file, byte[] content) throws IOException {
+    final FileOutputStream output = new FileOutputStream(file);
+    try {
+      output.write(content);
+    } finally {
+      output.close();
+    }
+  }
+
   public interface TempFilesFactory {
     File createTempFile(int size) throws IOException;
   }
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.deployer.agent.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TCP proxy that delays data in both directions, used to emulate high-latency links in benchmarks
+ * and broken connections in tests
+ */
+public class LatencyProxy {
+  private final ServerSocket myServerSocket;
+  private final int myTargetPort;
+  private final long myDelayMs;
+  private final List<Socket> mySockets = Collections.synchronizedList(new ArrayList<Socket>());
+  private final AtomicInteger myConnectionCount = new AtomicInteger();
+
+  /**
+   * @param targetPort    local port to forward connections to
+   * @param oneWayDelayMs delay of data in each direction, round trip time is twice as long
+   */
+  public LatencyProxy(final int targetPort, final long oneWayDelayMs) throws IOException {
+    myServerSocket = new ServerSocket(0);
+    myTargetPort = targetPort;
+    myDelayMs = oneWayDelayMs;
+    startThread("Latency proxy acceptor", new Runnable() {
+      public void run() {
+        try {
+          while (!myServerSocket.isClosed()) {
+            final Socket client = myServerSocket.accept();
+            final Socket server = new Socket("127.0.0.1", myTargetPort);
+            mySockets.add(client);
+            mySockets.add(server);
+            myConnectionCount.incrementAndGet();
+            forward(client, server);
+            forward(server, client);
+          }
+        } catch (IOException ignored) {
+        }
+      }
+    });
+  }
+
+  public int getPort() {
+    return myServerSocket.getLocalPort();
+  }
+
+  /**
+   * @return number of connections accepted so far
+   */
+  public int getConnectionCount() {
+    return myConnectionCount.get();
+  }
+
+  /**
+   * Close current connections, new ones are still accepted
+   */
+  public void dropConnections() throws IOException {
+    synchronized (mySockets) {
+      for (Socket socket : mySockets) {
+        socket.close();
+      }
+      mySockets.clear();
+    }
+  }
+
+  public void close() throws IOException {
+    myServerSocket.close();
+    dropConnections();
+  }
+
+  private void forward(final Socket from, final Socket to) {
+    final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+    startThread("Latency proxy reader", new Runnable() {
+      public void run() {
+        final byte[] buffer = new byte[64 * 1024];
+        try {
+          final InputStream in = from.getInputStream();
+          int read;
+          while ((read = in.read(buffer)) > 0) {
+            queue.add(new Chunk(System.currentTimeMillis() + myDelayMs, Arrays.copyOf(buffer, read)));
+          }
+        } catch (IOException ignored) {
+        }
+        queue.add(new Chunk(System.currentTimeMillis() + myDelayMs, null));
+      }
+    });
+    startThread("Latency proxy writer", new Runnable() {
+      public void run() {
+        try {
+          final OutputStream out = to.getOutputStream();
+          while (true) {
+            final Chunk chunk = queue.take();
+            final long wait = chunk.dueTime - System.currentTimeMillis();
+            if (wait > 0) {
+              Thread.sleep(wait);
+            }
+            if (chunk.data == null) {
+              to.shutdownOutput();
+              return;
+            }
+            out.write(chunk.data);
+            out.flush();
+          }
+        } catch (IOException ignored) {
+        } catch (InterruptedException ignored) {
+        }
+      }
+    });
+  }
+
+  private static void startThread(final String name, final Runnable runnable) {
+    final Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static class Chunk {
+    final long dueTime;
+    final byte[] data;
+
+    Chunk(long dueTime, byte[] data) {
+      this.dueTime = dueTime;
+      this.data = data;
+    }
+  }
+}
@@ -31,4 +31,17 @@ public class FTPRunnerConstants {
   public static final String PARAM_SSL_MODE = "jetbrains.buildServer.deployer.ftp.securityMode";
   public static final String PARAM_FTP_MODE = "jetbrains.buildServer.deployer.ftp.ftpMode";
   public static final String PARAM_FTP_CONNECT_TIMEOUT = "jetbrains.deployer.ftp.connectTimeout";
+  public static final String PARAM_FTP_PARALLEL_CONNECTIONS = "teamcity.deployer.ftp.parallelConnections";
+  public static final String PARAM_FTP_INCREMENTAL = "teamcity.deployer.ftp.incremental";
+  public static final String PARAM_FTP_MAX_RETRIES = "teamcity.deployer.ftp.maxRetries";
+  public static final String PARAM_FTP_TLS_SESSION_REUSE = "teamcity.deployer.ftp.tlsSessionReuse";
+  public static final String PARAM_FTP_COMPRESSION = "teamcity.deployer.ftp.compression";
+  public static final String PARAM_FTP_ZERO_COPY = "teamcity.deployer.ftp.zeroCopy";
+  public static final String PARAM_FTP_ATOMIC_UPLOAD = "teamcity.deployer.ftp.atomicUpload";
+  public static final String ATOMIC_UPLOAD_DEFERRED = "deferred";
+  public static final String PARAM_FTP_PROTOCOL_LOG = "teamcity.deployer.ftp.protocolLog";
+  public static final String PROTOCOL_LOG_FULL = "full";
+  public static final String COMPRESSION_NONE = "none";
+  public static final String COMPRESSION_ALL = "all";
+  public static final String COMPRESSION_TEXT = "text";
 }
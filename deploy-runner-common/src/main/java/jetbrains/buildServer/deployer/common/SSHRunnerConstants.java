@@ -44,6 +44,7 @@ public class SSHRunnerConstants {
 
   public static final String TRANSPORT_SCP = "jetbrains.buildServer.deployer.ssh.transport.scp";
   public static final String TRANSPORT_SFTP = "jetbrains.buildServer.deployer.ssh.transport.sftp";
+  public static final String TRANSPORT_TAR = "jetbrains.buildServer.deployer.ssh.transport.tar";
   public static final String AUTH_METHOD_DEFAULT_KEY = "DEFAULT_KEY";
   public static final String AUTH_METHOD_CUSTOM_KEY = "CUSTOM_KEY";
   public static final String AUTH_METHOD_USERNAME_PWD = "PWD";
@@ -51,6 +52,22 @@ public class SSHRunnerConstants {
   public static final String AUTH_METHOD_UPLOADED_KEY = "UPLOADED_KEY";
 
   public static final String ENABLE_SSH_AGENT_FORWARDING = "teamcity.deployer.ssh.enableAgentForwarding";
+  public static final String PARAM_SCP_PIPELINING = "teamcity.deployer.ssh.scpPipelining";
+  public static final String PARAM_PARALLEL_CHANNELS = "teamcity.deployer.ssh.parallelChannels";
+  // OpenSSH server allows 10 open channels per connection by default (MaxSessions), larger values of parallel channels are capped
+  public static final int MAX_PARALLEL_CHANNELS = 10;
+  public static final String PARAM_TAR_COMPRESSION_LEVEL = "teamcity.deployer.ssh.tarCompressionLevel";
+  public static final String PARAM_TAR_COMPRESSION_THREADS = "teamcity.deployer.ssh.tarCompressionThreads";
+  public static final String PARAM_SSH_COMPRESSION = "teamcity.deployer.ssh.compression";
+  public static final String PARAM_SSH_COMPRESSION_LEVEL = "teamcity.deployer.ssh.compressionLevel";
+  public static final String COMPRESSION_AUTO = "auto";
+  public static final String PARAM_SFTP_MAX_REQUESTS = "teamcity.deployer.ssh.sftpMaxRequests";
+  public static final String PARAM_SFTP_STRIPES = "teamcity.deployer.ssh.sftpStripes";
+  public static final String PARAM_SFTP_STRIPE_THRESHOLD = "teamcity.deployer.ssh.sftpStripeThreshold";
+  public static final String PARAM_SFTP_RESUME = "teamcity.deployer.ssh.sftpResume";
+  public static final String PARAM_SFTP_RESUME_CHECK_SIZE = "teamcity.deployer.ssh.sftpResumeCheckSize";
+  public static final String PARAM_SFTP_RETRIES = "teamcity.deployer.ssh.sftpRetries";
+  public static final String PARAM_SSH_INCREMENTAL = "teamcity.deployer.ssh.incremental";
 
   public String getTransportType() {
     return PARAM_TRANSPORT;
@@ -60,6 +77,7 @@ public class SSHRunnerConstants {
     final Map<String, String> result = new LinkedHashMap<String, String>();
     result.put(TRANSPORT_SCP, "SCP");
     result.put(TRANSPORT_SFTP, "SFTP");
+    result.put(TRANSPORT_TAR, "Tar over SSH");
     return result;
   }
 